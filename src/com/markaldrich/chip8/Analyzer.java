@@ -0,0 +1,665 @@
+package com.markaldrich.chip8;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.markaldrich.chip8.Instruction.Handler;
+
+/**
+ * Disassembles a ROM without running it: every instruction that can be reached from 0x200
+ * by following jumps, calls, returns and skips, split into basic blocks with the edges
+ * between them. Whatever is never reached is data, and data that DXYN draws with I set by
+ * a known ANNN is told apart as sprites.
+ *
+ * Usage: Analyzer &lt;rom&gt; [-profile name] [-json]
+ *
+ * Prints an annotated listing, or the same analysis as JSON with -json. The analysis can
+ * also be handed to a machine with {@link #prepare(Chip8)}, which decodes every
+ * instruction into its cache and compiles every block with its JIT before the first
+ * cycle, so a ROM starts out as fast as it gets once it is warm.
+ *
+ * Like any static disassembly it can only guess at BNNN, where it takes the run of jumps
+ * at NNN as the table, and it knows nothing about code that is written at runtime.
+ */
+public class Analyzer {
+	
+	public static final String USAGE = "Usage: Analyzer <rom> [-profile name] [-json]";
+	
+	// Where ROMs are loaded and start
+	public static final int ORIGIN = 0x200;
+	
+	// What a byte of the ROM is
+	public static final int DATA = 0;
+	public static final int CODE = 1;
+	public static final int OPERAND = 2;
+	public static final int SPRITE = 3;
+	
+	// How many values of I are followed through one address before it counts as unknown
+	private static final int MAX_I_STATES = 16;
+	
+	/**
+	 * Instructions from a leader up to the first one that branches, or up to the next
+	 * leader.
+	 */
+	public static class BasicBlock {
+		
+		public final int start;
+		
+		// Address right after the last instruction
+		public int end;
+		
+		// The last instruction, it decides where the block goes
+		public Instruction last;
+		
+		// Addresses of the blocks that can run next, for a call the target comes first
+		public final List<Integer> successors = new ArrayList<>();
+		
+		// Called by 2NNN
+		public boolean subroutine;
+		
+		public BasicBlock(int start) {
+			this.start = start;
+		}
+		
+		// What the block ends in: jump, call, return, exit, skip, indirect or fallthrough
+		public String getExit() {
+			Handler handler = last.handler;
+			if(handler == Decoder.JP) {
+				return "jump";
+			} else if(handler == Decoder.CALL) {
+				return "call";
+			} else if(handler == Decoder.RET) {
+				return "return";
+			} else if(handler == Decoder.EXIT) {
+				return "exit";
+			} else if(isSkip(handler)) {
+				return "skip";
+			} else if(isIndirect(handler)) {
+				return "indirect";
+			}
+			return "fallthrough";
+		}
+	}
+	
+	public final Quirks quirks;
+	
+	// Bytes of the ROM, starting at ORIGIN
+	private final int[] rom;
+	
+	// One of the kinds above per byte
+	public final int[] kinds;
+	
+	// By start address
+	public final TreeMap<Integer, BasicBlock> blocks = new TreeMap<>();
+	
+	// Addresses I was pointed at by ANNN or F000 NNNN before it was used
+	public final Set<Integer> spriteReferences = new HashSet<>();
+	public final Set<Integer> dataReferences = new HashSet<>();
+	
+	private final boolean[] leaders;
+	
+	private Analyzer(Memory memory, int size, Quirks quirks) {
+		this.quirks = quirks;
+		rom = new int[size];
+		for(int i = 0; i < size; i++) {
+			rom[i] = memory.read(ORIGIN + i);
+		}
+		kinds = new int[size];
+		leaders = new boolean[size];
+	}
+	
+	/**
+	 * Analyzes the size bytes of ROM at 0x200 in memory, decoding with the given quirks.
+	 */
+	public static Analyzer analyze(Memory memory, int size, Quirks quirks) {
+		if(size < 0 || ORIGIN + size > memory.size) {
+			throw new IllegalArgumentException("ROM of " + size + " bytes does not fit into " + memory.size + " bytes of memory");
+		}
+		Analyzer analyzer = new Analyzer(memory, size, quirks);
+		analyzer.trace();
+		analyzer.split();
+		return analyzer;
+	}
+	
+	/**
+	 * Analyzes a ROM the way a machine with the given quirks would load it.
+	 */
+	public static Analyzer analyze(byte[] data, Quirks quirks) {
+		Chip8 chip8 = new Chip8();
+		chip8.setQuirks(quirks);
+		chip8.reset();
+		chip8.loadRom(data);
+		return analyze(chip8.memory, data.length, quirks);
+	}
+	
+	public int getSize() {
+		return rom.length;
+	}
+	
+	// Follows every path from the entry point, carrying along what I is known to be
+	private void trace() {
+		if(rom.length < 2) {
+			return;
+		}
+		int[] states = new int[rom.length];
+		Set<Long> visited = new HashSet<>();
+		ArrayDeque<Long> work = new ArrayDeque<>();
+		leaders[0] = true;
+		work.add(state(ORIGIN, -1));
+		while(!work.isEmpty()) {
+			long state = work.poll();
+			int pc = (int) (state >>> 17);
+			int i = (int) (state & 0x1FFFF) - 1;
+			if(!visited.add(state)) {
+				continue;
+			}
+			int offset = pc - ORIGIN;
+			if(i >= 0 && ++states[offset] > MAX_I_STATES) {
+				// Too many, e.g. a loop that keeps adding to I
+				work.add(state(pc, -1));
+				continue;
+			}
+			
+			Instruction instruction = instructionAt(pc);
+			int size = sizeOf(instruction);
+			if(offset + size > rom.length) {
+				// Runs off the end of the ROM
+				continue;
+			}
+			kinds[offset] = CODE;
+			for(int k = 1; k < size; k++) {
+				if(kinds[offset + k] != CODE) {
+					kinds[offset + k] = OPERAND;
+				}
+			}
+			
+			Handler handler = instruction.handler;
+			int next = i;
+			if(handler == Decoder.LD_I) {
+				next = instruction.nnn;
+			} else if(handler == Decoder.LD_I_LONG) {
+				next = byteAt(pc + 2) << 8 | byteAt(pc + 3);
+			} else if(handler == Decoder.DRW || handler == Decoder.DRW_START_WRAPS || handler == Decoder.DRW_WRAP) {
+				if(i >= 0) {
+					markSprite(i, (instruction.n == 0) ? 32 : instruction.n);
+				}
+			} else if(handler == Decoder.LD_F_VX || handler == Decoder.LD_HF_VX) {
+				next = -1;
+			} else if(touchesMemory(handler)) {
+				if(i >= 0) {
+					dataReferences.add(i);
+				}
+				if(changesI(handler)) {
+					next = -1;
+				}
+			}
+			
+			int[] targets = targets(pc, instruction);
+			for(int t = 0; t < targets.length; t++) {
+				int target = targets[t];
+				if(target < ORIGIN || target + 1 >= ORIGIN + rom.length) {
+					continue;
+				}
+				if(endsBlock(handler)) {
+					leaders[target - ORIGIN] = true;
+				}
+				// Nothing is known about I after a return or a computed jump
+				boolean known = !(handler == Decoder.CALL && t == 1) && !isIndirect(handler);
+				work.add(state(target, known ? next : -1));
+			}
+		}
+	}
+	
+	// Cuts the code into blocks at the leaders and after every instruction that branches
+	private void split() {
+		for(int offset = 0; offset < rom.length; offset++) {
+			if(!leaders[offset] || kinds[offset] != CODE) {
+				continue;
+			}
+			int pc = ORIGIN + offset;
+			BasicBlock block = new BasicBlock(pc);
+			while(true) {
+				Instruction instruction = instructionAt(pc);
+				block.last = instruction;
+				int next = pc + sizeOf(instruction);
+				if(endsBlock(instruction.handler)) {
+					for(int target : targets(pc, instruction)) {
+						block.successors.add(target);
+					}
+					block.end = next;
+					break;
+				}
+				block.end = next;
+				if(next - ORIGIN >= rom.length || kinds[next - ORIGIN] != CODE) {
+					// Falls off the end of the ROM
+					break;
+				}
+				if(leaders[next - ORIGIN]) {
+					block.successors.add(next);
+					break;
+				}
+				pc = next;
+			}
+			blocks.put(block.start, block);
+		}
+		for(BasicBlock block : blocks.values()) {
+			if(block.last.handler == Decoder.CALL) {
+				BasicBlock callee = blocks.get(block.last.nnn);
+				if(callee != null) {
+					callee.subroutine = true;
+				}
+			}
+		}
+	}
+	
+	// Addresses that can run after the instruction at pc
+	private int[] targets(int pc, Instruction instruction) {
+		Handler handler = instruction.handler;
+		if(handler == Decoder.JP) {
+			return new int[] { instruction.nnn };
+		} else if(handler == Decoder.CALL) {
+			return new int[] { instruction.nnn, pc + 2 };
+		} else if(handler == Decoder.RET || handler == Decoder.EXIT) {
+			return new int[0];
+		} else if(isSkip(handler)) {
+			int next = pc + 2;
+			return new int[] { next, next + ((isLong(next)) ? 4 : 2) };
+		} else if(isIndirect(handler)) {
+			// Jump tables are a run of 1NNN, the register picks one of them
+			List<Integer> table = new ArrayList<>();
+			for(int entry = instruction.nnn; entry >= ORIGIN && entry + 1 < ORIGIN + rom.length; entry += 2) {
+				if(instructionAt(entry).handler != Decoder.JP) {
+					break;
+				}
+				table.add(entry);
+			}
+			int[] targets = new int[table.size()];
+			for(int t = 0; t < targets.length; t++) {
+				targets[t] = table.get(t);
+			}
+			return targets;
+		}
+		return new int[] { pc + sizeOf(instruction) };
+	}
+	
+	private void markSprite(int address, int length) {
+		spriteReferences.add(address);
+		for(int a = address; a < address + length; a++) {
+			int offset = a - ORIGIN;
+			if(offset >= 0 && offset < rom.length && kinds[offset] == DATA) {
+				kinds[offset] = SPRITE;
+			}
+		}
+	}
+	
+	private static long state(int pc, int i) {
+		return (long) pc << 17 | (i + 1);
+	}
+	
+	private int byteAt(int address) {
+		int offset = address - ORIGIN;
+		return (offset >= 0 && offset < rom.length) ? rom[offset] : 0;
+	}
+	
+	private boolean isLong(int address) {
+		return byteAt(address) == 0xF0 && byteAt(address + 1) == 0x00;
+	}
+	
+	public Instruction instructionAt(int address) {
+		return quirks.decode(byteAt(address) << 8 | byteAt(address + 1));
+	}
+	
+	public static int sizeOf(Instruction instruction) {
+		return (instruction.handler == Decoder.LD_I_LONG) ? 4 : 2;
+	}
+	
+	private static boolean isSkip(Handler handler) {
+		return handler == Decoder.SE_VX_NN || handler == Decoder.SNE_VX_NN
+				|| handler == Decoder.SE_VX_VY || handler == Decoder.SNE_VX_VY
+				|| handler == Decoder.SKP || handler == Decoder.SKNP;
+	}
+	
+	private static boolean isIndirect(Handler handler) {
+		return handler == Decoder.JP_V0 || handler == Decoder.JP_VX;
+	}
+	
+	private static boolean endsBlock(Handler handler) {
+		return handler == Decoder.JP || handler == Decoder.CALL || handler == Decoder.RET
+				|| handler == Decoder.EXIT || isSkip(handler) || isIndirect(handler);
+	}
+	
+	private static boolean touchesMemory(Handler handler) {
+		return handler == Decoder.LD_B_VX || handler == Decoder.LD_I_VX || handler == Decoder.LD_VX_I
+				|| handler == Decoder.LD_RANGE_VX || handler == Decoder.LD_VX_RANGE || handler == Decoder.LD_AUDIO
+				|| handler == Decoder.ADD_I_VX || changesI(handler);
+	}
+	
+	private static boolean changesI(Handler handler) {
+		return handler == Decoder.ADD_I_VX || handler == Decoder.LD_I_VX_ADD_X || handler == Decoder.LD_I_VX_ADD_X_1
+				|| handler == Decoder.LD_VX_I_ADD_X || handler == Decoder.LD_VX_I_ADD_X_1;
+	}
+	
+	/**
+	 * Decodes every instruction into the machine's cache and compiles every block, if the
+	 * machine has a JIT. The machine has to hold the analyzed ROM and use the same quirks.
+	 *
+	 * @return the number of blocks compiled
+	 */
+	public int prepare(Chip8 chip8) {
+		if(chip8.quirks != quirks) {
+			throw new IllegalArgumentException("Analyzed with " + quirks + ", the machine runs " + chip8.quirks);
+		}
+		for(int offset = 0; offset < rom.length; offset++) {
+			if(kinds[offset] == CODE) {
+				chip8.instructionCache[ORIGIN + offset] = instructionAt(ORIGIN + offset);
+			}
+		}
+		if(chip8.jit == null) {
+			return 0;
+		}
+		int compiled = 0;
+		for(BasicBlock block : blocks.values()) {
+			// The JIT stops at anything it leaves to the interpreter, so start again after it
+			int pc = block.start;
+			while(pc < block.end) {
+				Block compiledBlock = chip8.jit.precompile(chip8, pc);
+				if(compiledBlock != null) {
+					compiled++;
+					pc = compiledBlock.end;
+				} else {
+					pc += sizeOf(instructionAt(pc));
+				}
+			}
+		}
+		return compiled;
+	}
+	
+	public int count(int kind) {
+		int count = 0;
+		for(int k : kinds) {
+			if(k == kind || (kind == CODE && k == OPERAND)) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	public static String disassemble(Instruction instruction, int operand) {
+		int opcode = instruction.opcode;
+		int x = instruction.x;
+		int y = instruction.y;
+		switch(opcode & 0xF000) {
+			case 0x0000: {
+				if((opcode & 0xFFF0) == 0x00C0) {
+					return "SCD " + instruction.n;
+				} else if((opcode & 0xFFF0) == 0x00D0) {
+					return "SCU " + instruction.n;
+				}
+				switch(opcode) {
+					case 0x00E0: return "CLS";
+					case 0x00EE: return "RET";
+					case 0x00FB: return "SCR";
+					case 0x00FC: return "SCL";
+					case 0x00FD: return "EXIT";
+					case 0x00FE: return "LOW";
+					case 0x00FF: return "HIGH";
+				}
+				return "SYS " + address(instruction.nnn);
+			}
+			case 0x1000: return "JP " + address(instruction.nnn);
+			case 0x2000: return "CALL " + address(instruction.nnn);
+			case 0x3000: return "SE V" + hex(x, 1) + ", " + byteValue(instruction.nn);
+			case 0x4000: return "SNE V" + hex(x, 1) + ", " + byteValue(instruction.nn);
+			case 0x5000: {
+				switch(opcode & 0x000F) {
+					case 0x0002: return "LD [I], V" + hex(x, 1) + "-V" + hex(y, 1);
+					case 0x0003: return "LD V" + hex(x, 1) + "-V" + hex(y, 1) + ", [I]";
+				}
+				return "SE V" + hex(x, 1) + ", V" + hex(y, 1);
+			}
+			case 0x6000: return "LD V" + hex(x, 1) + ", " + byteValue(instruction.nn);
+			case 0x7000: return "ADD V" + hex(x, 1) + ", " + byteValue(instruction.nn);
+			case 0x8000: {
+				String registers = " V" + hex(x, 1) + ", V" + hex(y, 1);
+				switch(opcode & 0x000F) {
+					case 0x0000: return "LD" + registers;
+					case 0x0001: return "OR" + registers;
+					case 0x0002: return "AND" + registers;
+					case 0x0003: return "XOR" + registers;
+					case 0x0004: return "ADD" + registers;
+					case 0x0005: return "SUB" + registers;
+					case 0x0006: return "SHR" + registers;
+					case 0x0007: return "SUBN" + registers;
+					case 0x000E: return "SHL" + registers;
+				}
+				break;
+			}
+			case 0x9000: return "SNE V" + hex(x, 1) + ", V" + hex(y, 1);
+			case 0xA000: return "LD I, " + address(instruction.nnn);
+			case 0xB000: {
+				if(instruction.handler == Decoder.JP_VX) {
+					return "JP V" + hex(x, 1) + ", " + address(instruction.nnn);
+				}
+				return "JP V0, " + address(instruction.nnn);
+			}
+			case 0xC000: return "RND V" + hex(x, 1) + ", " + byteValue(instruction.nn);
+			case 0xD000: return "DRW V" + hex(x, 1) + ", V" + hex(y, 1) + ", " + instruction.n;
+			case 0xE000: {
+				if((opcode & 0x00FF) == 0x009E) {
+					return "SKP V" + hex(x, 1);
+				}
+				return "SKNP V" + hex(x, 1);
+			}
+			case 0xF000: {
+				if(opcode == 0xF000) {
+					return "LD I, 0x" + hex(operand, 4);
+				} else if(opcode == 0xF002) {
+					return "LD AUDIO, [I]";
+				}
+				String vx = "V" + hex(x, 1);
+				switch(opcode & 0x00FF) {
+					case 0x01: return "PLANE " + x;
+					case 0x07: return "LD " + vx + ", DT";
+					case 0x0A: return "LD " + vx + ", K";
+					case 0x15: return "LD DT, " + vx;
+					case 0x18: return "LD ST, " + vx;
+					case 0x1E: return "ADD I, " + vx;
+					case 0x29: return "LD F, " + vx;
+					case 0x30: return "LD HF, " + vx;
+					case 0x33: return "LD B, " + vx;
+					case 0x3A: return "LD PITCH, " + vx;
+					case 0x55: return "LD [I], " + vx;
+					case 0x65: return "LD " + vx + ", [I]";
+					case 0x75: return "LD R, " + vx;
+					case 0x85: return "LD " + vx + ", R";
+				}
+				break;
+			}
+		}
+		// Decodes to a NOP
+		return "DW 0x" + hex(opcode, 4);
+	}
+	
+	private static String hex(int value, int digits) {
+		StringBuilder text = new StringBuilder(Integer.toHexString(value).toUpperCase());
+		while(text.length() < digits) {
+			text.insert(0, '0');
+		}
+		return text.toString();
+	}
+	
+	private static String address(int address) {
+		return "0x" + hex(address, 3);
+	}
+	
+	private static String byteValue(int value) {
+		return "0x" + hex(value, 2);
+	}
+	
+	private String label(int address) {
+		BasicBlock block = blocks.get(address);
+		if(block != null) {
+			return (block.subroutine ? "sub_" : "L_") + hex(address, 3);
+		} else if(spriteReferences.contains(address)) {
+			return "sprite_" + hex(address, 3);
+		} else if(dataReferences.contains(address)) {
+			return "data_" + hex(address, 3);
+		}
+		return null;
+	}
+	
+	public void printListing(PrintStream out) {
+		out.println("; " + rom.length + " bytes, " + quirks + " quirks");
+		out.println("; " + blocks.size() + " blocks, " + count(CODE) + " bytes of code, " + count(SPRITE)
+				+ " bytes of sprites, " + count(DATA) + " bytes of data");
+		int offset = 0;
+		while(offset < rom.length) {
+			int address = ORIGIN + offset;
+			String label = label(address);
+			if(label != null) {
+				out.println();
+				out.println(label + ":");
+			}
+			StringBuilder line = new StringBuilder();
+			line.append("    ").append(hex(address, 3)).append("  ");
+			int kind = kinds[offset];
+			if(kind == CODE) {
+				Instruction instruction = instructionAt(address);
+				int size = sizeOf(instruction);
+				for(int k = 0; k < size; k++) {
+					line.append(hex(rom[offset + k], 2));
+				}
+				pad(line, 20);
+				line.append(disassemble(instruction, byteAt(address + 2) << 8 | byteAt(address + 3)));
+				offset += size;
+			} else if(kind == SPRITE) {
+				int value = rom[offset];
+				line.append(hex(value, 2));
+				pad(line, 20);
+				for(int bit = 7; bit >= 0; bit--) {
+					line.append(((value >> bit) & 1) != 0 ? '#' : '.');
+				}
+				offset++;
+			} else {
+				// Up to 8 bytes per line, as long as nothing else starts in between
+				line.append(hex(rom[offset], 2));
+				offset++;
+				for(int k = 1; k < 8 && offset < rom.length && kinds[offset] == kind
+						&& label(ORIGIN + offset) == null; k++) {
+					line.append(' ').append(hex(rom[offset], 2));
+					offset++;
+				}
+			}
+			out.println(line);
+		}
+	}
+	
+	private static void pad(StringBuilder line, int width) {
+		while(line.length() < width) {
+			line.append(' ');
+		}
+	}
+	
+	public void writeJson(PrintStream out) {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"profile\": \"").append(quirks.name).append("\",\n");
+		json.append("  \"origin\": ").append(ORIGIN).append(",\n");
+		json.append("  \"size\": ").append(rom.length).append(",\n");
+		json.append("  \"blocks\": [");
+		boolean first = true;
+		for(BasicBlock block : blocks.values()) {
+			json.append(first ? "\n" : ",\n");
+			first = false;
+			json.append("    {\"start\": ").append(block.start).append(", \"end\": ").append(block.end)
+					.append(", \"subroutine\": ").append(block.subroutine)
+					.append(", \"exit\": \"").append(block.getExit()).append("\", \"successors\": [");
+			for(int s = 0; s < block.successors.size(); s++) {
+				json.append((s == 0) ? "" : ", ").append(block.successors.get(s));
+			}
+			json.append("], \"instructions\": [");
+			for(int pc = block.start; pc < block.end; ) {
+				Instruction instruction = instructionAt(pc);
+				json.append((pc == block.start) ? "" : ", ");
+				json.append("{\"address\": ").append(pc).append(", \"opcode\": ").append(instruction.opcode)
+						.append(", \"text\": \"").append(disassemble(instruction, byteAt(pc + 2) << 8 | byteAt(pc + 3)))
+						.append("\"}");
+				pc += sizeOf(instruction);
+			}
+			json.append("]}");
+		}
+		json.append("\n  ],\n");
+		json.append("  \"regions\": [");
+		first = true;
+		int start = 0;
+		for(int offset = 1; offset <= rom.length; offset++) {
+			if(offset < rom.length && kindName(kinds[offset]).equals(kindName(kinds[start]))) {
+				continue;
+			}
+			json.append(first ? "\n" : ",\n");
+			first = false;
+			json.append("    {\"start\": ").append(ORIGIN + start).append(", \"end\": ").append(ORIGIN + offset)
+					.append(", \"kind\": \"").append(kindName(kinds[start])).append("\"}");
+			start = offset;
+		}
+		json.append("\n  ]\n");
+		json.append("}");
+		out.println(json);
+	}
+	
+	// Operands are part of the code
+	private static String kindName(int kind) {
+		switch(kind) {
+			case CODE:
+			case OPERAND: return "code";
+			case SPRITE: return "sprite";
+		}
+		return "data";
+	}
+	
+	public static void main(String[] args) {
+		if(args.length < 1) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		Quirks quirks = Quirks.DEFAULT;
+		boolean json = false;
+		for(int i = 1; i < args.length; i++) {
+			if(args[i].equals("-json")) {
+				json = true;
+			} else if(args[i].equals("-profile") && i + 1 < args.length) {
+				try {
+					quirks = Quirks.forName(args[++i]);
+				} catch(IllegalArgumentException e) {
+					System.err.println(e.getMessage());
+					System.exit(2);
+				}
+			} else {
+				System.err.println(USAGE);
+				System.exit(2);
+			}
+		}
+		
+		byte[] data = null;
+		try {
+			data = Files.readAllBytes(Paths.get(args[0]));
+		} catch(IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		Analyzer analyzer = analyze(data, quirks);
+		if(json) {
+			analyzer.writeJson(System.out);
+		} else {
+			analyzer.printListing(System.out);
+		}
+	}
+}
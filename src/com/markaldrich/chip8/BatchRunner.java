@@ -0,0 +1,235 @@
+package com.markaldrich.chip8;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Runs every ROM in a directory for a fixed number of frames and reports how each one
+ * ended up, for regression testing a whole corpus at once.
+ *
+ * Usage: BatchRunner &lt;dir&gt; [-frames n] [-speed n] [-seed n] [-threads n] [-report file] [-jit] [-profile name]
+ *
+ * Every ROM gets its own {@link Chip8} and {@link Scheduler}, and the runs are spread over
+ * a fork join pool with one thread per core by default. A ROM that crashes only ends its
+ * own run. The report has one tab separated line per ROM: the name, ok or crashed, the
+ * cycles executed, the hash of the final screen, the time taken and what went wrong. Every
+ * machine uses the same seed for CXNN, 0 by default, so reports can be compared between
+ * runs. -profile runs every ROM with the given {@link Quirks}.
+ */
+public class BatchRunner {
+	
+	public static final String USAGE = "Usage: BatchRunner <dir> [-frames n] [-speed n] [-seed n] [-threads n] [-report file] [-jit] [-profile name]";
+	
+	public static class Result {
+		
+		public final String name;
+		
+		public long cycles;
+		
+		public long screenHash;
+		
+		public long nanos;
+		
+		// Description of the crash, null if the ROM ran to the end
+		public String crash;
+		
+		public Result(String name) {
+			this.name = name;
+		}
+		
+		public boolean crashed() {
+			return crash != null;
+		}
+		
+		@Override
+		public String toString() {
+			return name + "\t" + (crashed() ? "crashed" : "ok") + "\t" + cycles + "\t" + Long.toHexString(screenHash)
+					+ "\t" + (nanos / 1000000) + "\t" + (crashed() ? crash : "");
+		}
+	}
+	
+	/**
+	 * Runs a single ROM on a fresh machine. Never throws, whatever went wrong ends up in
+	 * the result.
+	 */
+	public static Result run(Path rom, long frames, int speed, long seed, boolean jit, Quirks quirks) {
+		Result result = new Result(rom.getFileName().toString());
+		Chip8 chip8 = new Chip8();
+		long start = System.nanoTime();
+		chip8.setSeed(seed);
+		chip8.setQuirks(quirks);
+		try {
+			if(jit) {
+				chip8.jit = new BlockCompiler();
+			}
+			chip8.reset();
+			chip8.loadRom(Files.readAllBytes(rom));
+			new Scheduler(chip8, speed).runFrames(frames);
+		} catch(IOException e) {
+			result.crash = "Could not read ROM: " + e;
+		} catch(RuntimeException e) {
+			result.crash = e + " at pc=0x" + Integer.toHexString(chip8.pc) + " opcode=0x"
+					+ Integer.toHexString(chip8.opcode);
+		}
+		result.nanos = System.nanoTime() - start;
+		result.cycles = chip8.cycles;
+		if(chip8.gfx != null) {
+			result.screenHash = chip8.gfx.hash();
+		}
+		return result;
+	}
+	
+	/**
+	 * Runs all of the ROMs in parallel, the results are in the same order as the ROMs.
+	 */
+	public static List<Result> runAll(List<Path> roms, final long frames, final int speed, final long seed, final boolean jit,
+			final Quirks quirks, int threads) {
+		List<Callable<Result>> tasks = new ArrayList<>(roms.size());
+		for(final Path rom : roms) {
+			tasks.add(new Callable<Result>() {
+				@Override
+				public Result call() {
+					return run(rom, frames, speed, seed, jit, quirks);
+				}
+			});
+		}
+		
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<Result> results = new ArrayList<>(roms.size());
+			for(Future<Result> future : pool.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+			return results;
+		} catch(InterruptedException | ExecutionException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	// Every file below the directory, sorted so the report is always in the same order
+	public static List<Path> findRoms(Path dir) throws IOException {
+		List<Path> roms = new ArrayList<>();
+		try(Stream<Path> files = Files.walk(dir)) {
+			Iterator<Path> iterator = files.iterator();
+			while(iterator.hasNext()) {
+				Path file = iterator.next();
+				if(Files.isRegularFile(file)) {
+					roms.add(file);
+				}
+			}
+		}
+		Collections.sort(roms);
+		return roms;
+	}
+	
+	public static void main(String[] args) {
+		if(args.length < 1) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		
+		Path dir = Paths.get(args[0]);
+		long frames = 600;
+		int speed = Scheduler.DEFAULT_SPEED;
+		long seed = 0;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String reportPath = null;
+		boolean jit = false;
+		Quirks quirks = Quirks.DEFAULT;
+		for(int i = 1; i < args.length; i++) {
+			if(args[i].equals("-jit")) {
+				jit = true;
+				continue;
+			}
+			if(i + 1 >= args.length) {
+				System.err.println(USAGE);
+				System.exit(2);
+			}
+			String value = args[++i];
+			switch(args[i - 1]) {
+				case "-frames": {
+					frames = Long.parseLong(value);
+					break;
+				}
+				case "-speed": {
+					speed = Integer.parseInt(value);
+					break;
+				}
+				case "-seed": {
+					seed = Long.parseLong(value);
+					break;
+				}
+				case "-threads": {
+					threads = Integer.parseInt(value);
+					break;
+				}
+				case "-report": {
+					reportPath = value;
+					break;
+				}
+				case "-profile": {
+					try {
+						quirks = Quirks.forName(value);
+					} catch(IllegalArgumentException e) {
+						System.err.println(e.getMessage());
+						System.exit(2);
+					}
+					break;
+				}
+				default: {
+					System.err.println(USAGE);
+					System.exit(2);
+				}
+			}
+		}
+		
+		List<Path> roms = null;
+		try {
+			roms = findRoms(dir);
+		} catch(IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		
+		long start = System.nanoTime();
+		List<Result> results = runAll(roms, frames, speed, seed, jit, quirks, threads);
+		long elapsed = System.nanoTime() - start;
+		
+		PrintStream out = System.out;
+		try {
+			if(reportPath != null) {
+				out = new PrintStream(reportPath);
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		int crashed = 0;
+		for(Result result : results) {
+			out.println(result);
+			if(result.crashed()) {
+				crashed++;
+			}
+		}
+		if(out != System.out) {
+			out.close();
+		}
+		System.err.println(results.size() + " ROMs, " + crashed + " crashed, " + (elapsed / 1000000) + " ms on "
+				+ threads + " threads");
+		System.exit(crashed > 0 ? 1 : 0);
+	}
+}
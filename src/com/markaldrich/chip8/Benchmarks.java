@@ -0,0 +1,287 @@
+package com.markaldrich.chip8;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks for the hot paths: the interpreter on a few instruction mixes, DXYN, SCHIP
+ * scrolling, the renderer and whole ROMs.
+ *
+ * Usage: Benchmarks [-jit] [rom...]
+ *
+ * For every ROM there is also the cost of starting a new machine on it, with and without
+ * sharing the ROM's memory pages between machines.
+ *
+ * Every benchmark is warmed up first and then measured over several rounds. The results
+ * are the operations per second of the best round, the average over all rounds, and the
+ * bytes allocated per operation as counted by the JVM for the benchmark thread, which
+ * should stay at 0 for everything but starting machines.
+ */
+public class Benchmarks {
+	
+	public static final long WARMUP_NANOS = 2000000000L;
+	public static final int ROUNDS = 5;
+	public static final long ROUND_NANOS = 1000000000L;
+	
+	public static abstract class Benchmark {
+		
+		public final String name;
+		
+		// What one operation is, e.g. instructions
+		public final String unit;
+		
+		public Benchmark(String name, String unit) {
+			this.name = name;
+			this.unit = unit;
+		}
+		
+		// Runs the operation count times
+		public abstract void run(long count);
+	}
+	
+	/**
+	 * Runs a program that loops forever, one operation is one instruction.
+	 */
+	public static Benchmark program(String name, final boolean jit, final int... program) {
+		final Chip8 chip8 = new Chip8();
+		if(jit) {
+			chip8.jit = new BlockCompiler();
+		}
+		chip8.reset();
+		byte[] data = new byte[program.length * 2];
+		for(int i = 0; i < program.length; i++) {
+			data[i * 2] = (byte) (program[i] >> 8);
+			data[i * 2 + 1] = (byte) program[i];
+		}
+		chip8.loadRom(data);
+		final Scheduler scheduler = new Scheduler(chip8, Scheduler.DEFAULT_SPEED);
+		return new Benchmark(name + (jit ? " (jit)" : ""), "instructions") {
+			@Override
+			public void run(long count) {
+				scheduler.run(count);
+			}
+		};
+	}
+	
+	/**
+	 * Draws the same sprite over and over at x, y.
+	 */
+	public static Benchmark sprite(String name, int height, int x, int y) {
+		final Chip8 chip8 = new Chip8();
+		chip8.reset();
+		chip8.I = 0x300;
+		for(int i = 0; i < 16; i++) {
+			chip8.write(0xA5 ^ (i * 17), 0x300 + i);
+		}
+		chip8.V[0] = x;
+		chip8.V[1] = y;
+		final Instruction draw = Decoder.decode(0xD010 | (height & 0xF));
+		return new Benchmark(name, "sprites") {
+			@Override
+			public void run(long count) {
+				for(long i = 0; i < count; i++) {
+					draw.handler.execute(chip8, draw);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Runs one of the SCHIP scroll instructions over and over on a full 128x64 screen.
+	 */
+	public static Benchmark scroll(String name, int opcode) {
+		final Chip8 chip8 = new Chip8();
+		chip8.reset();
+		chip8.gfx.setResolution(true);
+		long[] rows = chip8.gfx.rows;
+		for(int i = 0; i < rows.length; i++) {
+			rows[i] = 0x5A5A5A5A5A5A5A5AL * i;
+		}
+		final Instruction scroll = Decoder.decode(opcode);
+		return new Benchmark(name, "scrolls") {
+			@Override
+			public void run(long count) {
+				for(long i = 0; i < count; i++) {
+					scroll.handler.execute(chip8, scroll);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Updates the renderer's image, with a new row changing every frame if dirty is set.
+	 */
+	public static Benchmark render(String name, final boolean hires, final boolean dirty) {
+		final Renderer renderer = new Renderer();
+		final Display display = new Display();
+		display.setResolution(hires);
+		for(int i = 0; i < display.rows.length; i++) {
+			display.rows[i] = 0x5A5A5A5A5A5A5A5AL * i;
+		}
+		return new Benchmark(name, "frames") {
+			private int row;
+			
+			@Override
+			public void run(long count) {
+				for(long i = 0; i < count; i++) {
+					if(dirty) {
+						display.rows[row] = ~display.rows[row];
+						row = (row + 1) % (display.height * display.words);
+					}
+					renderer.update(display);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Starts a new machine on a ROM and runs its first frame, either sharing the memory of
+	 * one image or loading the ROM into every machine.
+	 */
+	public static Benchmark startup(String name, final byte[] data, final boolean shared) {
+		final Memory image = Chip8.createImage(data);
+		return new Benchmark(name, "machines") {
+			@Override
+			public void run(long count) {
+				for(long i = 0; i < count; i++) {
+					Chip8 chip8 = new Chip8();
+					if(shared) {
+						chip8.loadImage(image);
+					} else {
+						chip8.reset();
+						chip8.loadRom(data);
+					}
+					new Scheduler(chip8).runFrames(1);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Runs a ROM from the start, one operation is one instruction. The ROM is started over
+	 * after every minute of emulated time so it does not get stuck at its end.
+	 */
+	public static Benchmark rom(final String path, final boolean jit) throws IOException {
+		final byte[] data = Files.readAllBytes(Paths.get(path));
+		final Chip8 chip8 = new Chip8();
+		if(jit) {
+			chip8.jit = new BlockCompiler();
+		}
+		final Scheduler scheduler = new Scheduler(chip8, Scheduler.DEFAULT_SPEED);
+		return new Benchmark(Paths.get(path).getFileName() + (jit ? " (jit)" : ""), "instructions") {
+			@Override
+			public void run(long count) {
+				while(count > 0) {
+					if(chip8.memory == null || chip8.cycles >= 60L * Scheduler.DEFAULT_SPEED) {
+						chip8.reset();
+						chip8.loadRom(data);
+					}
+					long n = Math.min(count, 60L * Scheduler.DEFAULT_SPEED - chip8.cycles);
+					scheduler.run(n);
+					count -= n;
+				}
+			}
+		};
+	}
+	
+	public static void measure(Benchmark benchmark) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		
+		// Warm up and find out how many operations fit in a round
+		long batch = 1;
+		long start = System.nanoTime();
+		while(System.nanoTime() - start < WARMUP_NANOS) {
+			long before = System.nanoTime();
+			benchmark.run(batch);
+			if(System.nanoTime() - before < ROUND_NANOS / 10) {
+				batch *= 2;
+			}
+		}
+		
+		double best = 0;
+		double total = 0;
+		long allocated = 0;
+		long operations = 0;
+		for(int round = 0; round < ROUNDS; round++) {
+			long count = 0;
+			long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+			long before = System.nanoTime();
+			long elapsed;
+			do {
+				benchmark.run(batch);
+				count += batch;
+				elapsed = System.nanoTime() - before;
+			} while(elapsed < ROUND_NANOS);
+			allocated += threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+			operations += count;
+			
+			double rate = count / (elapsed / 1e9);
+			best = Math.max(best, rate);
+			total += rate;
+		}
+		
+		System.out.println(String.format("%-32s %14.0f %14.0f %10.3f  %s/s, avg, B/op", benchmark.name, best,
+				total / ROUNDS, (double) allocated / operations, benchmark.unit));
+	}
+	
+	public static void main(String[] args) {
+		boolean jit = false;
+		List<String> roms = new ArrayList<>();
+		for(String arg : args) {
+			if(arg.equals("-jit")) {
+				jit = true;
+			} else {
+				roms.add(arg);
+			}
+		}
+		
+		List<Benchmark> benchmarks = new ArrayList<>();
+		// V0-V3 arithmetic, ends in a jump back to the start
+		benchmarks.add(program("alu", jit,
+				0x6001, 0x6102, 0x7003, 0x8014, 0x8105, 0x8212, 0x8303, 0x8016,
+				0x811E, 0x8237, 0xA300, 0xF01E, 0x1200));
+		// Skips taken and not taken, plus a call and return
+		benchmarks.add(program("branch", jit,
+				0x6005, 0x3005, 0x7001, 0x4005, 0x7001, 0x5010, 0x9010, 0x7001,
+				0x2216, 0x1200, 0x0000, 0x00EE));
+		// Memory through I
+		benchmarks.add(program("memory", jit,
+				0xA400, 0xF355, 0xF365, 0xF033, 0xF265, 0xF01E, 0x1200));
+		
+		benchmarks.add(sprite("DXYN 1 row at 0,0", 1, 0, 0));
+		benchmarks.add(sprite("DXYN 5 rows at 8,4", 5, 8, 4));
+		benchmarks.add(sprite("DXYN 5 rows at 13,4", 5, 13, 4));
+		benchmarks.add(sprite("DXYN 15 rows at 21,2", 15, 21, 2));
+		benchmarks.add(sprite("DXYN 15 rows clipped at 60,24", 15, 60, 24));
+		
+		benchmarks.add(scroll("00C1 scroll down 1", 0x00C1));
+		benchmarks.add(scroll("00FB scroll right 4", 0x00FB));
+		benchmarks.add(scroll("00FC scroll left 4", 0x00FC));
+		
+		benchmarks.add(render("render lores clean", false, false));
+		benchmarks.add(render("render lores dirty", false, true));
+		benchmarks.add(render("render hires dirty", true, true));
+		
+		for(String path : roms) {
+			try {
+				byte[] data = Files.readAllBytes(Paths.get(path));
+				String name = Paths.get(path).getFileName().toString();
+				benchmarks.add(startup(name + " startup", data, false));
+				benchmarks.add(startup(name + " startup shared", data, true));
+				benchmarks.add(rom(path, jit));
+			} catch(IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+		
+		for(Benchmark benchmark : benchmarks) {
+			measure(benchmark);
+		}
+	}
+}
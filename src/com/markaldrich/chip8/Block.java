@@ -0,0 +1,44 @@
+package com.markaldrich.chip8;
+
+/**
+ * A straight run of instructions compiled into JVM bytecode by {@link BlockCompiler}.
+ *
+ * execute() runs the instructions in the block, counts them in {@link Chip8#cycles} and
+ * leaves pc at the instruction to run next, exactly as if they had been stepped one by one.
+ * A skip inside the block jumps over the next instruction of the block, so a run can be
+ * shorter than length.
+ */
+public abstract class Block {
+	
+	// Address of the first instruction
+	public final int start;
+	
+	// Number of instructions, the most a run can take
+	public final int length;
+	
+	// Address right after the last instruction
+	public final int end;
+	
+	// Number of instructions in the block by the top nibble of their opcode, for Metrics
+	public final int[] opcodeFamilies = new int[16];
+	
+	// Top nibble of the opcode each skip inside the block jumps over, in order
+	public int[] skippedFamilies;
+	
+	// Skips inside the block that were taken in the last run, bit n for skip n
+	public int skipped;
+	
+	// Block that ran after this one last time, so the next lookup can skip the cache
+	public Block next;
+	
+	// Cleared when the compiler throws its blocks away
+	public volatile boolean valid = true;
+	
+	public Block(int start, int length, int end) {
+		this.start = start;
+		this.length = length;
+		this.end = end;
+	}
+	
+	public abstract void execute(Chip8 chip8);
+}
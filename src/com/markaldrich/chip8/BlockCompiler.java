@@ -0,0 +1,570 @@
+package com.markaldrich.chip8;
+
+import java.util.Arrays;
+
+import com.markaldrich.chip8.ClassBuilder.Code;
+import com.markaldrich.chip8.Instruction.Handler;
+
+import static com.markaldrich.chip8.ClassBuilder.*;
+
+/**
+ * Compiles hot basic blocks of Chip8 code into JVM classes.
+ *
+ * Every address gets a counter that goes up each time the CPU is about to execute there.
+ * Once it hits the threshold the instructions from that address on are compiled into one
+ * {@link Block} that works directly on the registers, up to the first instruction that
+ * branches. A skip over an instruction that the block can run as well does not count as a
+ * branch, both are compiled and the block goes on after them. Anything that draws, touches
+ * the timers or the keys, the stack or memory is left to the interpreter and ends the
+ * block before it.
+ *
+ * Writing to an address covered by a compiled block throws every block away, and that
+ * address is never compiled again, so self-modifying code always runs interpreted.
+ *
+ * Blocks shorter than {@link #MIN_BLOCK_LENGTH} are left to the interpreter as well, the
+ * lookup and the call to run a single compiled instruction cost more than stepping it.
+ */
+public class BlockCompiler {
+	
+	public static final int DEFAULT_THRESHOLD = 1000;
+	
+	public static final int MAX_BLOCK_LENGTH = 64;
+	
+	public static final int MIN_BLOCK_LENGTH = 2;
+	
+	private static final String CHIP8 = "com/markaldrich/chip8/Chip8";
+	private static final String BLOCK = "com/markaldrich/chip8/Block";
+	
+	// Locals in the generated execute(Chip8) method
+	private static final int LOCAL_CHIP8 = 1;
+	private static final int LOCAL_V = 2;
+	private static final int LOCAL_A = 3;
+	private static final int LOCAL_B = 4;
+	
+	// Skips inside the block that were taken, as a bit per skip and as a count
+	private static final int LOCAL_SKIPPED = 5;
+	private static final int LOCAL_SKIP_COUNT = 6;
+	
+	// Bits in Block.skipped
+	private static final int MAX_INLINE_SKIPS = 32;
+	
+	private final int threshold;
+	
+	// Everything by address, sized to the memory of the machine on reset
+	private Block[] blocks = new Block[Chip8.MEMORY_SIZE];
+	private int[] heat = new int[Chip8.MEMORY_SIZE];
+	
+	// Bytes that are part of a compiled block
+	private boolean[] covered = new boolean[Chip8.MEMORY_SIZE];
+	
+	// Bytes of compiled code that were written to
+	private boolean[] modified = new boolean[Chip8.MEMORY_SIZE];
+	
+	private Loader loader = new Loader();
+	
+	private int compiled;
+	
+	public BlockCompiler(int threshold) {
+		this.threshold = threshold;
+	}
+	
+	public BlockCompiler() {
+		this(DEFAULT_THRESHOLD);
+	}
+	
+	public int getCompiledCount() {
+		return compiled;
+	}
+	
+	/**
+	 * Sizes everything to the memory of the machine, in case the compiler was attached after
+	 * the machine was reset to another memory size. Has to be called before lookup().
+	 */
+	public void attach(Chip8 chip8) {
+		if(blocks.length != chip8.memory.size) {
+			reset(chip8.memory.size);
+		}
+	}
+	
+	/**
+	 * Returns the block starting at pc, compiling it if it just got hot, or null if the
+	 * interpreter has to run this one.
+	 */
+	public Block lookup(Chip8 chip8, int pc) {
+		Block block = blocks[pc];
+		// Past the threshold without a block, this address is left to the interpreter
+		if(block == null && heat[pc] < threshold && ++heat[pc] == threshold) {
+			block = compile(chip8, pc);
+		}
+		return block;
+	}
+	
+	/**
+	 * Compiles the block at address right away instead of waiting for it to get hot, for
+	 * code that is known ahead of time, see {@link Analyzer#prepare(Chip8)}. Returns null if
+	 * the interpreter has to run the instruction there.
+	 */
+	public Block precompile(Chip8 chip8, int address) {
+		attach(chip8);
+		Block block = blocks[address];
+		if(block == null && heat[address] < threshold) {
+			// Counts as hot, so a block that can not be compiled is not tried again
+			heat[address] = threshold;
+			block = compile(chip8, address);
+		}
+		return block;
+	}
+	
+	/**
+	 * Called for every write to memory.
+	 */
+	public void invalidate(int address) {
+		if(covered[address]) {
+			modified[address] = true;
+			flush();
+		}
+	}
+	
+	/**
+	 * Throws away every compiled block.
+	 */
+	public void flush() {
+		for(Block block : blocks) {
+			if(block != null) {
+				block.valid = false;
+			}
+		}
+		Arrays.fill(blocks, null);
+		Arrays.fill(covered, false);
+		Arrays.fill(heat, 0);
+		// Let the old classes get unloaded
+		loader = new Loader();
+	}
+	
+	public void reset(int memorySize) {
+		flush();
+		if(blocks.length != memorySize) {
+			blocks = new Block[memorySize];
+			heat = new int[memorySize];
+			covered = new boolean[memorySize];
+			modified = new boolean[memorySize];
+		} else {
+			Arrays.fill(modified, false);
+		}
+	}
+	
+	private Block compile(Chip8 chip8, int start) {
+		Memory memory = chip8.memory;
+		Instruction[] instructions = new Instruction[MAX_BLOCK_LENGTH];
+		int length = 0;
+		int address = start;
+		boolean skips = false;
+		int inlineSkips = 0;
+		while(length < MAX_BLOCK_LENGTH && address + 1 < memory.size) {
+			if(modified[address] || modified[address + 1]) {
+				break;
+			}
+			Instruction instruction = chip8.quirks.decode(memory.read(address) << 8 | memory.read(address + 1));
+			if(!isCompilable(instruction.handler)) {
+				break;
+			}
+			instructions[length++] = instruction;
+			address += 2;
+			if(endsBlock(instruction.handler)) {
+				skips = instruction.handler != Decoder.JP;
+				if(skips && length < MAX_BLOCK_LENGTH && inlineSkips < MAX_INLINE_SKIPS && isSkippable(chip8, address)) {
+					// Only ever skips the next instruction, which goes into the block as well
+					inlineSkips++;
+					skips = false;
+					continue;
+				}
+				break;
+			}
+		}
+		// How far a skip at the end goes depends on the instruction after it, so that one
+		// counts as part of the block as well
+		int mask = chip8.memoryMask;
+		int next = address & mask;
+		int skipLength = 4;
+		if(skips) {
+			if(modified[next] || modified[(next + 1) & mask]) {
+				// Leave the skip to the interpreter
+				length--;
+				address -= 2;
+				skips = false;
+			} else if(memory.read(next) == 0xF0 && memory.read((next + 1) & mask) == 0x00) {
+				// F000 NNNN
+				skipLength = 6;
+			}
+		}
+		if(length < MIN_BLOCK_LENGTH) {
+			return null;
+		}
+		
+		String name = "com/markaldrich/chip8/CompiledBlock$" + Integer.toHexString(start) + "$" + compiled;
+		byte[] classFile = generate(name, instructions, length, start, mask, skipLength, inlineSkips > 0);
+		Block block;
+		try {
+			Class<?> type = loader.define(name.replace('/', '.'), classFile);
+			block = (Block) type.getConstructor(int.class, int.class, int.class).newInstance(start, length, address);
+		} catch(ReflectiveOperationException | LinkageError e) {
+			// Should never happen, but the interpreter can always take over
+			e.printStackTrace();
+			return null;
+		}
+		block.skippedFamilies = new int[inlineSkips];
+		int inlined = 0;
+		for(int k = 0; k < length; k++) {
+			block.opcodeFamilies[instructions[k].opcode >>> 12]++;
+			if(k < length - 1 && endsBlock(instructions[k].handler)) {
+				block.skippedFamilies[inlined++] = instructions[k + 1].opcode >>> 12;
+			}
+		}
+		compiled++;
+		blocks[start] = block;
+		Arrays.fill(covered, start, address, true);
+		if(skips) {
+			covered[next] = true;
+			covered[(next + 1) & mask] = true;
+		}
+		return block;
+	}
+	
+	private static boolean isCompilable(Handler handler) {
+		return handler == Decoder.LD_VX_NN || handler == Decoder.ADD_VX_NN
+				|| handler == Decoder.LD_VX_VY || handler == Decoder.OR
+				|| handler == Decoder.AND || handler == Decoder.XOR
+				|| handler == Decoder.ADD_VX_VY || handler == Decoder.SUB
+				|| handler == Decoder.SUBN || handler == Decoder.SHR
+				|| handler == Decoder.SHL || handler == Decoder.SHR_VY
+				|| handler == Decoder.SHL_VY || handler == Decoder.LD_I
+				|| handler == Decoder.ADD_I_VX || handler == Decoder.JP
+				|| endsBlock(handler);
+	}
+	
+	// Whether a skip right before address can be compiled into the block along with the
+	// instruction at address
+	private boolean isSkippable(Chip8 chip8, int address) {
+		if(address + 1 >= chip8.memory.size || modified[address] || modified[address + 1]) {
+			return false;
+		}
+		Handler handler = chip8.quirks.decode(chip8.memory.read(address) << 8 | chip8.memory.read(address + 1)).handler;
+		return isCompilable(handler) && !endsBlock(handler);
+	}
+	
+	private static boolean endsBlock(Handler handler) {
+		return handler == Decoder.JP || handler == Decoder.SE_VX_NN
+				|| handler == Decoder.SNE_VX_NN || handler == Decoder.SE_VX_VY
+				|| handler == Decoder.SNE_VX_VY;
+	}
+	
+	private static byte[] generate(String name, Instruction[] instructions, int length, int start, int mask, int skipLength, boolean inlineSkips) {
+		ClassBuilder builder = new ClassBuilder(name, BLOCK);
+		int pcField = builder.fieldRef(CHIP8, "pc", "I");
+		int iField = builder.fieldRef(CHIP8, "I", "I");
+		int vField = builder.fieldRef(CHIP8, "V", "[I");
+		int opcodeField = builder.fieldRef(CHIP8, "opcode", "I");
+		int cyclesField = builder.fieldRef(CHIP8, "cycles", "J");
+		// Only kept track of when there are skips inside the block
+		int skippedField = inlineSkips ? builder.fieldRef(BLOCK, "skipped", "I") : 0;
+		
+		// public CompiledBlock(int start, int length, int end) { super(start, length, end); }
+		Code constructor = new Code(builder, 4, 4);
+		constructor.op(ALOAD, 0);
+		constructor.op(ILOAD, 1);
+		constructor.op(ILOAD, 2);
+		constructor.op(ILOAD, 3);
+		constructor.op16(INVOKESPECIAL, builder.methodRef(BLOCK, "<init>", "(III)V"));
+		constructor.op(RETURN);
+		builder.addMethod(ACC_PUBLIC, "<init>", "(III)V", constructor);
+		
+		Code code = new Code(builder, 8, 7);
+		code.op(ALOAD, LOCAL_CHIP8);
+		code.op16(GETFIELD, vField);
+		code.op(ASTORE, LOCAL_V);
+		if(inlineSkips) {
+			code.push(0);
+			code.op(ISTORE, LOCAL_SKIPPED);
+			code.push(0);
+			code.op(ISTORE, LOCAL_SKIP_COUNT);
+		}
+		
+		// Where the block goes next if nothing branches
+		int address = start;
+		int[] exits = null;
+		// Branch of a skip inside the block over the instruction that comes next
+		int pendingSkip = -1;
+		int inlined = 0;
+		for(int k = 0; k < length; k++) {
+			Instruction instruction = instructions[k];
+			Handler handler = instruction.handler;
+			int x = instruction.x;
+			int y = instruction.y;
+			if(handler == Decoder.LD_VX_NN) {
+				// V[x] = nn
+				code.op(ALOAD, LOCAL_V);
+				code.push(x);
+				code.push(instruction.nn);
+				code.op(IASTORE);
+			} else if(handler == Decoder.ADD_VX_NN) {
+				// V[x] = (V[x] + nn) & 0xFF
+				code.op(ALOAD, LOCAL_V);
+				code.push(x);
+				loadV(code, x);
+				code.push(instruction.nn);
+				code.op(IADD);
+				code.push(0xFF);
+				code.op(IAND);
+				code.op(IASTORE);
+			} else if(handler == Decoder.LD_VX_VY) {
+				code.op(ALOAD, LOCAL_V);
+				code.push(x);
+				loadV(code, y);
+				code.op(IASTORE);
+			} else if(handler == Decoder.OR || handler == Decoder.AND || handler == Decoder.XOR) {
+				code.op(ALOAD, LOCAL_V);
+				code.push(x);
+				loadV(code, x);
+				loadV(code, y);
+				code.op((handler == Decoder.OR) ? IOR : (handler == Decoder.AND) ? IAND : IXOR);
+				code.op(IASTORE);
+			} else if(handler == Decoder.ADD_VX_VY) {
+				// V[x] += V[y]; if(V[x] > 0xFF) { V[0xF] = 1; V[x] -= 256; }
+				loadV(code, x);
+				loadV(code, y);
+				code.op(IADD);
+				code.op(ISTORE, LOCAL_A);
+				code.op(ALOAD, LOCAL_V);
+				code.push(x);
+				code.op(ILOAD, LOCAL_A);
+				code.op(IASTORE);
+				code.op(ILOAD, LOCAL_A);
+				code.push(0xFF);
+				int noCarry = code.branch(IF_ICMPLE);
+				code.op(ALOAD, LOCAL_V);
+				code.push(0xF);
+				code.push(1);
+				code.op(IASTORE);
+				code.op(ALOAD, LOCAL_V);
+				code.push(x);
+				loadV(code, x);
+				code.push(256);
+				code.op(ISUB);
+				code.op(IASTORE);
+				code.patch(noCarry);
+			} else if(handler == Decoder.SUB || handler == Decoder.SUBN) {
+				// a = V[x], b = V[y] for SUB and the other way around for SUBN
+				// if(a > b) { V[0xF] = 1; V[x] = a - b; } else { V[0xF] = 0; V[x] = 256 + a - b; }
+				loadV(code, (handler == Decoder.SUB) ? x : y);
+				code.op(ISTORE, LOCAL_A);
+				loadV(code, (handler == Decoder.SUB) ? y : x);
+				code.op(ISTORE, LOCAL_B);
+				code.op(ILOAD, LOCAL_A);
+				code.op(ILOAD, LOCAL_B);
+				int borrow = code.branch(IF_ICMPLE);
+				storeVF(code, 1);
+				code.op(ALOAD, LOCAL_V);
+				code.push(x);
+				code.op(ILOAD, LOCAL_A);
+				code.op(ILOAD, LOCAL_B);
+				code.op(ISUB);
+				code.op(IASTORE);
+				int done = code.branch(GOTO);
+				code.patch(borrow);
+				storeVF(code, 0);
+				code.op(ALOAD, LOCAL_V);
+				code.push(x);
+				code.push(256);
+				code.op(ILOAD, LOCAL_A);
+				code.op(IADD);
+				code.op(ILOAD, LOCAL_B);
+				code.op(ISUB);
+				code.op(IASTORE);
+				code.patch(done);
+			} else if(handler == Decoder.SHR) {
+				// V[0xF] = V[x] & 1; V[x] = V[x] >> 1
+				code.op(ALOAD, LOCAL_V);
+				code.push(0xF);
+				loadV(code, x);
+				code.push(1);
+				code.op(IAND);
+				code.op(IASTORE);
+				code.op(ALOAD, LOCAL_V);
+				code.push(x);
+				loadV(code, x);
+				code.push(1);
+				code.op(ISHR);
+				code.op(IASTORE);
+			} else if(handler == Decoder.SHL) {
+				// V[0xF] = (V[x] & 0x80) >> 7; V[x] = (V[x] << 1) & 0xFF
+				code.op(ALOAD, LOCAL_V);
+				code.push(0xF);
+				loadV(code, x);
+				code.push(0x80);
+				code.op(IAND);
+				code.push(7);
+				code.op(ISHR);
+				code.op(IASTORE);
+				code.op(ALOAD, LOCAL_V);
+				code.push(x);
+				loadV(code, x);
+				code.push(1);
+				code.op(ISHL);
+				code.push(0xFF);
+				code.op(IAND);
+				code.op(IASTORE);
+			} else if(handler == Decoder.SHR_VY || handler == Decoder.SHL_VY) {
+				// a = V[y]; V[x] = a >> 1 or (a << 1) & 0xFF; V[0xF] = a & 1 or (a & 0x80) >> 7
+				loadV(code, y);
+				code.op(ISTORE, LOCAL_A);
+				code.op(ALOAD, LOCAL_V);
+				code.push(x);
+				code.op(ILOAD, LOCAL_A);
+				code.push(1);
+				if(handler == Decoder.SHR_VY) {
+					code.op(ISHR);
+				} else {
+					code.op(ISHL);
+					code.push(0xFF);
+					code.op(IAND);
+				}
+				code.op(IASTORE);
+				code.op(ALOAD, LOCAL_V);
+				code.push(0xF);
+				code.op(ILOAD, LOCAL_A);
+				if(handler == Decoder.SHR_VY) {
+					code.push(1);
+					code.op(IAND);
+				} else {
+					code.push(0x80);
+					code.op(IAND);
+					code.push(7);
+					code.op(ISHR);
+				}
+				code.op(IASTORE);
+			} else if(handler == Decoder.LD_I) {
+				code.op(ALOAD, LOCAL_CHIP8);
+				code.push(instruction.nnn);
+				code.op16(PUTFIELD, iField);
+			} else if(handler == Decoder.ADD_I_VX) {
+				code.op(ALOAD, LOCAL_CHIP8);
+				code.op(DUP);
+				code.op16(GETFIELD, iField);
+				loadV(code, x);
+				code.op(IADD);
+				code.push(0xFFFF);
+				code.op(IAND);
+				code.op16(PUTFIELD, iField);
+			} else if(handler == Decoder.JP) {
+				exits = new int[] { instruction.nnn & mask };
+			} else {
+				// One of the skips, compare and pick between the two exits
+				boolean equalSkips = handler == Decoder.SE_VX_NN || handler == Decoder.SE_VX_VY;
+				if(handler == Decoder.SE_VX_NN || handler == Decoder.SNE_VX_NN) {
+					loadV(code, x);
+					if(handler == Decoder.SNE_VX_NN) {
+						code.push(0xFF);
+						code.op(IAND);
+					}
+					code.push(instruction.nn);
+				} else {
+					loadV(code, x);
+					loadV(code, y);
+				}
+				int skip = code.branch(equalSkips ? IF_ICMPEQ : IF_ICMPNE);
+				if(k < length - 1) {
+					// Jumps over the next instruction, which is emitted right after this
+					pendingSkip = skip;
+					address += 2;
+					continue;
+				}
+				finish(code, (address + 2) & mask, instruction.opcode, length, pcField, opcodeField, cyclesField, skippedField);
+				code.patch(skip);
+				finish(code, (address + skipLength) & mask, instruction.opcode, length, pcField, opcodeField, cyclesField, skippedField);
+				exits = new int[0];
+			}
+			if(pendingSkip >= 0) {
+				// The skip was taken: count it, and if this was the last instruction the skip
+				// was the last one to run
+				int done = code.branch(GOTO);
+				code.patch(pendingSkip);
+				code.op(ILOAD, LOCAL_SKIPPED);
+				code.push(1 << inlined);
+				code.op(IOR);
+				code.op(ISTORE, LOCAL_SKIPPED);
+				code.op(ILOAD, LOCAL_SKIP_COUNT);
+				code.push(1);
+				code.op(IADD);
+				code.op(ISTORE, LOCAL_SKIP_COUNT);
+				if(k == length - 1) {
+					finish(code, (address + 2) & mask, instructions[k - 1].opcode, length, pcField, opcodeField, cyclesField, skippedField);
+				}
+				code.patch(done);
+				pendingSkip = -1;
+				inlined++;
+			}
+			address += 2;
+		}
+		if(exits == null) {
+			// Ran into something the compiler does not handle, the interpreter goes on from here
+			exits = new int[] { address & mask };
+		}
+		if(exits.length == 1) {
+			finish(code, exits[0], instructions[length - 1].opcode, length, pcField, opcodeField, cyclesField, skippedField);
+		}
+		builder.addMethod(ACC_PUBLIC, "execute", "(L" + CHIP8 + ";)V", code);
+		return builder.toByteArray();
+	}
+	
+	private static void loadV(Code code, int register) {
+		code.op(ALOAD, LOCAL_V);
+		code.push(register);
+		code.op(IALOAD);
+	}
+	
+	private static void storeVF(Code code, int value) {
+		code.op(ALOAD, LOCAL_V);
+		code.push(0xF);
+		code.push(value);
+		code.op(IASTORE);
+	}
+	
+	// Sets pc and opcode, counts the cycles and returns. With skips inside the block, the
+	// skipped instructions are not counted and the skips taken are stored in the block.
+	private static void finish(Code code, int pc, int opcode, int length, int pcField, int opcodeField, int cyclesField, int skippedField) {
+		code.op(ALOAD, LOCAL_CHIP8);
+		code.push(pc);
+		code.op16(PUTFIELD, pcField);
+		code.op(ALOAD, LOCAL_CHIP8);
+		code.push(opcode);
+		code.op16(PUTFIELD, opcodeField);
+		if(skippedField != 0) {
+			code.op(ALOAD, 0);
+			code.op(ILOAD, LOCAL_SKIPPED);
+			code.op16(PUTFIELD, skippedField);
+		}
+		code.op(ALOAD, LOCAL_CHIP8);
+		code.op(DUP);
+		code.op16(GETFIELD, cyclesField);
+		code.push(length);
+		if(skippedField != 0) {
+			code.op(ILOAD, LOCAL_SKIP_COUNT);
+			code.op(ISUB);
+		}
+		code.op(I2L);
+		code.op(LADD);
+		code.op16(PUTFIELD, cyclesField);
+		code.op(RETURN);
+	}
+	
+	private static class Loader extends ClassLoader {
+		
+		Loader() {
+			super(Block.class.getClassLoader());
+		}
+		
+		Class<?> define(String name, byte[] classFile) {
+			return defineClass(name, classFile, 0, classFile.length);
+		}
+	}
+}
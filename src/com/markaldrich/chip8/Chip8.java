@@ -0,0 +1,1679 @@
+package com.markaldrich.chip8;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The Chip8 machine itself: memory, registers, timers and the interpreter. Nothing in here
+ * touches AWT or Swing, so it can be driven by the jgl frontend in {@link Main} or run
+ * headless by {@link Headless}.
+ */
+public class Chip8 {
+	
+	public static int[] chip8_fontset = {
+		0xF0, 0x90, 0x90, 0x90, 0xF0, // 0
+		0x20, 0x60, 0x20, 0x20, 0x70, // 1
+		0xF0, 0x10, 0xF0, 0x80, 0xF0, // 2
+		0xF0, 0x10, 0xF0, 0x10, 0xF0, // 3
+		0x90, 0x90, 0xF0, 0x10, 0x10, // 4
+		0xF0, 0x80, 0xF0, 0x10, 0xF0, // 5
+		0xF0, 0x80, 0xF0, 0x90, 0xF0, // 6
+		0xF0, 0x10, 0x20, 0x40, 0x40, // 7
+		0xF0, 0x90, 0xF0, 0x90, 0xF0, // 8
+		0xF0, 0x90, 0xF0, 0x10, 0xF0, // 9
+		0xF0, 0x90, 0xF0, 0x90, 0x90, // A
+		0xE0, 0x90, 0xE0, 0x90, 0xE0, // B
+		0xF0, 0x80, 0x80, 0x80, 0xF0, // C
+		0xE0, 0x90, 0x90, 0x90, 0xE0, // D
+		0xF0, 0x80, 0xF0, 0x80, 0xF0, // E
+		0xF0, 0x80, 0xF0, 0x80, 0x80  // F
+	};
+	
+	// 8x10 digits for FX30, the SCHIP ones plus A-F
+	public static int[] schip_fontset = {
+		0xFF, 0xFF, 0xC3, 0xC3, 0xC3, 0xC3, 0xC3, 0xC3, 0xFF, 0xFF, // 0
+		0x18, 0x78, 0x78, 0x18, 0x18, 0x18, 0x18, 0x18, 0xFF, 0xFF, // 1
+		0xFF, 0xFF, 0x03, 0x03, 0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, // 2
+		0xFF, 0xFF, 0x03, 0x03, 0xFF, 0xFF, 0x03, 0x03, 0xFF, 0xFF, // 3
+		0xC3, 0xC3, 0xC3, 0xC3, 0xFF, 0xFF, 0x03, 0x03, 0x03, 0x03, // 4
+		0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, 0x03, 0x03, 0xFF, 0xFF, // 5
+		0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, 0xC3, 0xC3, 0xFF, 0xFF, // 6
+		0xFF, 0xFF, 0x03, 0x03, 0x06, 0x0C, 0x18, 0x18, 0x18, 0x18, // 7
+		0xFF, 0xFF, 0xC3, 0xC3, 0xFF, 0xFF, 0xC3, 0xC3, 0xFF, 0xFF, // 8
+		0xFF, 0xFF, 0xC3, 0xC3, 0xFF, 0xFF, 0x03, 0x03, 0xFF, 0xFF, // 9
+		0x7E, 0xFF, 0xC3, 0xC3, 0xC3, 0xFF, 0xFF, 0xC3, 0xC3, 0xC3, // A
+		0xFC, 0xFC, 0xC3, 0xC3, 0xFC, 0xFC, 0xC3, 0xC3, 0xFC, 0xFC, // B
+		0x3C, 0xFF, 0xC3, 0xC0, 0xC0, 0xC0, 0xC0, 0xC3, 0xFF, 0x3C, // C
+		0xFC, 0xFE, 0xC3, 0xC3, 0xC3, 0xC3, 0xC3, 0xC3, 0xFE, 0xFC, // D
+		0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, // E
+		0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, 0xC0, 0xC0, 0xC0, 0xC0  // F
+	};
+	
+	public static final int BIG_FONT_ADDRESS = 0x50;
+	
+	/*
+	 * Emulator variables
+	 */
+	// Even though the opcode is a short, it is unsigned, so a Java signed short cannot
+	// be used
+	public int opcode;
+	
+	// Main memory of the Chip8
+	// Mapped out as:
+	/**
+	 * 0x000-0x1FF - Chip 8 interpreter (contains font set in emu)
+	 * 0x000-0x04F - Used for the built in 4x5 pixel font set (0-F)
+	 * 0x050-0x0EF - Used for the SCHIP 8x10 pixel font set (0-F)
+	 * 0x200-0xFFF - Program ROM and work RAM, up to 0xFFFF for XO-CHIP
+	 * The font page is shared by every machine, see {@link Memory}.
+	 */
+	public Memory memory;
+	
+	public static final int MEMORY_SIZE = 4096;
+	public static final int XO_CHIP_MEMORY_SIZE = 65536;
+	
+	// Size of memory after the next reset
+	private int memorySize = MEMORY_SIZE;
+	
+	// Decodes every instruction, see setQuirks()
+	public Quirks quirks = Quirks.DEFAULT;
+	
+	// Quirks after the next reset
+	private Quirks nextQuirks = Quirks.DEFAULT;
+	
+	// Addresses wrap around like on the real thing, every address is ANDed with this
+	public int memoryMask = 0xFFF;
+	
+	// Memory right after a reset, nothing but the fonts
+	private static final Memory BOOT = createBoot(MEMORY_SIZE);
+	private static final Memory XO_CHIP_BOOT = createBoot(XO_CHIP_MEMORY_SIZE);
+	
+	private static Memory createBoot(int size) {
+		Memory boot = new Memory(size);
+		for(int i = 0; i < 80; i++) {
+			boot.write(i, chip8_fontset[i]);
+		}
+		for(int i = 0; i < 160; i++) {
+			boot.write(BIG_FONT_ADDRESS + i, schip_fontset[i]);
+		}
+		boot.freeze();
+		return boot;
+	}
+	
+	// Makes addresses outside of memory throw a MemoryAccessException instead of wrapping
+	public boolean strict;
+	
+	// CPU registers
+	public int[] V;
+	
+	// Index register
+	public int I;
+	
+	// Program counter
+	public int pc;
+	
+	// Decoded instruction at every address, null if it has not been decoded yet. Memory
+	// has to be changed through write() so this stays in sync.
+	public Instruction[] instructionCache;
+	
+	// Graphics memory
+	public Display gfx;
+	
+	// Planes that drawing, clearing and scrolling go to, chosen with the XO-CHIP FN01
+	public int planes;
+	
+	// Two countdown registers
+	public int delayTimer;
+	// TODO: The emulator will make a sound when this register gets to 0.
+	public int soundTimer;
+	
+	// XO-CHIP sound, 128 one bit samples from F002 that loop while the sound timer runs
+	public final int[] audioPattern = new int[16];
+	
+	// Playback rate of the pattern set by FX3A, see getPlaybackRate()
+	public int pitch;
+	
+	// Stack and stack pointer
+	public int[] stack;
+	public int sp;
+	
+	// Keyboard state, fed by key events from the frontend
+	public final Keypad keypad = new Keypad();
+	
+	// Set while FX0A is waiting for a key to be pressed
+	public boolean waitingForKey;
+	
+	// Set once 00FD exits the program, nothing runs after that until a reset
+	public boolean halted;
+	
+	// SCHIP flag registers for FX75 and FX85. Like the HP48's they survive a reset.
+	public final int[] flags = new int[16];
+	
+	// Draw flag
+	public boolean drawFlag;
+	
+	// Number of instructions executed since the last reset
+	public long cycles;
+	
+	// Seed for CXNN, the generator starts over from it on every reset
+	private long seed = System.nanoTime();
+	
+	// State of the random number generator
+	public long random;
+	
+	// Optional instruction trace, null when tracing is off
+	public Trace trace;
+	
+	// Optional counters, null when metrics are off
+	public Metrics metrics;
+	
+	// Optional compiler for hot code, null to only interpret
+	public BlockCompiler jit;
+	
+	public void runTests() {
+		if(!test00E0()) {
+			System.out.println("0x00E0 failed");
+		}
+		if(!test00EE()) {
+			System.out.println("0x00EE failed pc=" + Integer.toHexString(pc));
+			for(int i = 0; i < stack.length; i++) {
+				System.out.println("" + i + ": 0x" + Integer.toHexString(stack[i]));
+			}
+		}
+		if(!test1NNN()) {
+			System.out.println("0x1NNN failed");
+		}
+		if(!test2NNN()) {
+			System.out.println("0x2NNN failed");
+		}
+		if(!test3XNN_1()) {
+			System.out.println("0x3XNN_1 failed");
+		}
+		if(!test3XNN_2()) {
+			System.out.println("0x3XNN_2 failed");
+		}
+		if(!test4XNN_1()) {
+			System.out.println("0x4XNN_1 failed");
+		}
+		if(!test4XNN_2()) {
+			System.out.println("0x4XNN_2 failed");
+		}
+		if(!test5XY0_1()) {
+			System.out.println("0x5XY0_1 failed");
+		}
+		if(!test5XY0_2()) {
+			System.out.println("0x5XY0_2 failed");
+		}
+		if(!test6XNN()) {
+			System.out.println("0x6XNN failed");
+		}
+		if(!test7XNN()) {
+			System.out.println("0x7XNN failed");
+		}
+		if(!test8XY0()) {
+			System.out.println("0x8XY0 failed");
+		}
+		if(!test8XY1()) {
+			System.out.println("0x8XY1 failed");
+		}
+		if(!test8XY2()) {
+			System.out.println("0x8XY2 failed");
+		}
+		if(!test8XY3()) {
+			System.out.println("0x8XY3 failed");
+		}
+		if(!test8XY4_1()) {
+			System.out.println("0x8XY4_1 failed");
+		}
+		if(!test8XY4_2()) {
+			System.out.println("0x8XY4_2 failed");
+		}
+		if(!test8XY5_1()) {
+			System.out.println("0x8XY5_1 failed");
+		}
+		if(!test8XY5_2()) {
+			System.out.println("0x8XY5_2 failed");
+		}
+		if(!test8XY6()) {
+			System.out.println("0x8XY6 failed");
+		}
+		if(!test8XY7_1()) {
+			System.out.println("0x8XY7_1 failed");
+		}
+		if(!test8XY7_2()) {
+			System.out.println("0x8XY7_2 failed");
+		}
+		if(!test8XYE()) {
+			System.out.println("0x8XYE failed");
+		}
+		if(!test9XY0_1()) {
+			System.out.println("0x9XY0_1 failed");
+		}
+		if(!test9XY0_2()) {
+			System.out.println("0x9XY0_2 failed");
+		}
+		if(!testANNN()) {
+			System.out.println("0xANNN failed");
+		}
+		if(!testBNNN()) {
+			System.out.println("0xBNNN failed");
+		}
+		if(!testCXNN()) {
+			System.out.println("0xCXNN failed");
+		}
+		if(!testDXYN()) {
+			System.out.println("0xDXYN failed");
+		}
+		if(!testEX9E_1()) {
+			System.out.println("0xEX9E_1 failed");
+		}
+		if(!testEX9E_2()) {
+			System.out.println("0xEX9E_2 failed");
+		}
+		if(!testEXA1_1()) {
+			System.out.println("0xEXA1_1 failed");
+		}
+		if(!testEXA1_2()) {
+			System.out.println("0xEXA1_2 failed");
+		}
+		if(!testFX07()) {
+			System.out.println("0xFX07 failed");
+		}
+		if(!testFX0A()) {
+			System.out.println("0xFX0A failed");
+		}
+		if(!testFX15()) {
+			System.out.println("0xFX15 failed");
+		}
+		if(!testFX18()) {
+			System.out.println("0xFX18 failed");
+		}
+		if(!testFX1E()) {
+			System.out.println("0xFX1E failed");
+		}
+		if(!testFX29()) {
+			System.out.println("0xFX29 failed");
+		}
+		if(!testFX33()) {
+			System.out.println("0xFX33 failed");
+		}
+		if(!testFX1E_wrap()) {
+			System.out.println("0xFX1E_wrap failed");
+		}
+		if(!testFX55()) {
+			System.out.println("0xFX55 failed");
+		}
+		if(!testFX65()) {
+			System.out.println("0xFX65 failed");
+		}
+		if(!test00CN()) {
+			System.out.println("0x00CN failed");
+		}
+		if(!test00FB()) {
+			System.out.println("0x00FB failed");
+		}
+		if(!test00FC()) {
+			System.out.println("0x00FC failed");
+		}
+		if(!test00FD()) {
+			System.out.println("0x00FD failed");
+		}
+		if(!test00FE()) {
+			System.out.println("0x00FE failed");
+		}
+		if(!testDXY0()) {
+			System.out.println("0xDXY0 failed");
+		}
+		if(!testFX30()) {
+			System.out.println("0xFX30 failed");
+		}
+		if(!testFX75()) {
+			System.out.println("0xFX75 failed");
+		}
+		if(!testFX85()) {
+			System.out.println("0xFX85 failed");
+		}
+		if(!test00DN()) {
+			System.out.println("0x00DN failed");
+		}
+		if(!test5XY2()) {
+			System.out.println("0x5XY2 failed");
+		}
+		if(!test5XY3()) {
+			System.out.println("0x5XY3 failed");
+		}
+		if(!testF000()) {
+			System.out.println("0xF000 failed");
+		}
+		if(!testFN01()) {
+			System.out.println("0xFN01 failed");
+		}
+		if(!testF002()) {
+			System.out.println("0xF002 failed");
+		}
+		if(!testFX3A()) {
+			System.out.println("0xFX3A failed");
+		}
+		if(!testVip8XY6()) {
+			System.out.println("VIP 0x8XY6 failed");
+		}
+		if(!testVip8XY1()) {
+			System.out.println("VIP 0x8XY1 failed");
+		}
+		if(!testVipFX55()) {
+			System.out.println("VIP 0xFX55 failed");
+		}
+		if(!testChip48FX65()) {
+			System.out.println("CHIP-48 0xFX65 failed");
+		}
+		if(!testChip48BXNN()) {
+			System.out.println("CHIP-48 0xBXNN failed");
+		}
+		if(!testXoChipDXYN()) {
+			System.out.println("XO-CHIP 0xDXYN failed");
+		}
+		if(!testVipDXYN()) {
+			System.out.println("VIP 0xDXYN failed");
+		}
+		if(!testJit()) {
+			System.out.println("JIT failed");
+		}
+		if(!testAnalyzer()) {
+			System.out.println("Analyzer failed");
+		}
+		if(!testStrictFX55()) {
+			System.out.println("Strict 0xFX55 failed");
+		}
+		if(!testSound()) {
+			System.out.println("Sound failed");
+		}
+		if(!testIdleLoop()) {
+			System.out.println("Idle loop failed");
+		}
+		if(!testSaveState()) {
+			System.out.println("Save state failed");
+		}
+		if(!testRewind()) {
+			System.out.println("Rewind failed");
+		}
+		if(!testMovie()) {
+			System.out.println("Movie failed");
+		}
+	}
+	
+	public void reset() {
+		pc = 0x200;
+		opcode = 0;
+		I = 0;
+		sp = 0;
+		delayTimer = 0;
+		soundTimer = 0;
+		// The arrays are only allocated once, so a reset does not allocate
+		if(V == null) {
+			V = new int[16];
+			gfx = new Display();
+			stack = new int[16];
+		} else {
+			Arrays.fill(V, 0);
+			gfx.setResolution(false);
+			Arrays.fill(stack, 0);
+		}
+		// Unless the memory size changed
+		if(memory == null || memory.size != memorySize) {
+			memory = new Memory(memorySize);
+			instructionCache = new Instruction[memorySize];
+		}
+		memory.map((memorySize == MEMORY_SIZE) ? BOOT : XO_CHIP_BOOT);
+		memoryMask = memory.mask;
+		quirks = nextQuirks;
+		invalidateCode();
+		planes = 1;
+		Arrays.fill(audioPattern, 0);
+		pitch = 64;
+		keypad.clear();
+		waitingForKey = false;
+		halted = false;
+		drawFlag = false;
+		cycles = 0;
+		random = seed;
+	}
+	
+	/**
+	 * Forgets all decoded and compiled code, for when memory was changed without going
+	 * through write().
+	 */
+	public void invalidateCode() {
+		Arrays.fill(instructionCache, null);
+		if(jit != null) {
+			jit.reset(memory.size);
+		}
+	}
+	
+	public int getMemorySize() {
+		return memorySize;
+	}
+	
+	/**
+	 * Sets the size of memory from the next reset on, {@link #MEMORY_SIZE} for CHIP-8 and
+	 * SCHIP or {@link #XO_CHIP_MEMORY_SIZE} for XO-CHIP.
+	 */
+	public void setMemorySize(int size) {
+		if(size != MEMORY_SIZE && size != XO_CHIP_MEMORY_SIZE) {
+			throw new IllegalArgumentException("Memory size must be " + MEMORY_SIZE + " or " + XO_CHIP_MEMORY_SIZE + ", got " + size);
+		}
+		memorySize = size;
+	}
+	
+	public Quirks getQuirks() {
+		return nextQuirks;
+	}
+	
+	/**
+	 * Sets the quirk profile from the next reset on, along with the memory size it needs.
+	 * The profile decides which handler every opcode is decoded to, so it stays the same
+	 * for as long as the machine runs.
+	 */
+	public void setQuirks(Quirks quirks) {
+		setMemorySize(quirks.memorySize);
+		nextQuirks = quirks;
+	}
+	
+	/**
+	 * Memory with the font and the ROM in it, for starting any number of machines on the
+	 * same ROM with {@link #loadImage(Memory)}.
+	 */
+	public static Memory createImage(byte[] data) {
+		Chip8 chip8 = new Chip8();
+		chip8.reset();
+		chip8.loadRom(data);
+		chip8.memory.freeze();
+		return chip8.memory;
+	}
+	
+	/**
+	 * Resets the machine and shares the memory of an image made by createImage(). Pages are
+	 * only copied once this machine writes to them.
+	 */
+	public void loadImage(Memory image) {
+		reset();
+		memory.map(image);
+	}
+	
+	public void loadRom(byte[] data) {
+		if(data.length > memory.size - 0x200) {
+			throw new IllegalArgumentException("ROM is too big, " + data.length + " bytes");
+		}
+		for(int i = 0; i < data.length; i++) {
+			write((int) data[i], i + 0x200);
+		}
+	}
+	
+	public long getSeed() {
+		return seed;
+	}
+	
+	/**
+	 * Sets the seed for CXNN and restarts the generator, the same seed always gives the
+	 * same numbers.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+		random = seed;
+	}
+	
+	/**
+	 * Moves pc past the next instruction, for the skips. F000 NNNN is 4 bytes long, so it
+	 * takes skipping 4 bytes instead of 2.
+	 */
+	public void skip() {
+		int next = (pc + 2) & memoryMask;
+		if(memory.read(next) == 0xF0 && memory.read((next + 1) & memoryMask) == 0x00) {
+			pc += 4;
+		} else {
+			pc += 2;
+		}
+	}
+	
+	// Samples per second the audio pattern plays at, 4000 at the default pitch of 64
+	public double getPlaybackRate() {
+		return 4000 * Math.pow(2, (pitch - 64) / 48.0);
+	}
+	
+	// Next random byte, SplitMix64
+	public int nextRandom() {
+		long z = (random += 0x9E3779B97F4A7C15L);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return (int) (z ^ (z >>> 31)) & 0xFF;
+	}
+	
+	public void write(int value, int location) {
+		int address = location & memoryMask;
+		if(strict && address != location) {
+			throw new MemoryAccessException("Invalid write! Program tried to write 0x" + Integer.toHexString(value)
+				 + " to location 0x" + Integer.toHexString(location), location);
+		}
+		memory.write(address, value);
+		// The byte may be part of an instruction that was already decoded
+		instructionCache[address] = null;
+		instructionCache[(address - 1) & memoryMask] = null;
+		if(jit != null) {
+			jit.invalidate(address);
+		}
+	}
+	
+	public int read(int location) {
+		int address = location & memoryMask;
+		if(strict && address != location) {
+			throw new MemoryAccessException("Invalid read! Program tried to read from " + Integer.toHexString(location), location);
+		}
+		return memory.read(address);
+	}
+	
+	/**
+	 * Throws if any of the length bytes from location on are outside of memory, only
+	 * checked in strict mode.
+	 */
+	public void checkRange(int location, int length) {
+		if(strict && (location < 0 || location + length - 1 > memoryMask)) {
+			throw new MemoryAccessException("Invalid read! Program tried to read from " + Integer.toHexString(location)
+				 + " to " + Integer.toHexString(location + length - 1), location);
+		}
+	}
+	
+	public void step() {
+		// Fetch the decoded instruction, only decoding it the first time
+		Instruction instruction = instructionCache[pc];
+		if(instruction == null) {
+			instruction = fetch(pc);
+		}
+		opcode = instruction.opcode;
+		if(trace != null) {
+			trace.record(cycles, pc, opcode, I, sp, V);
+		}
+		if(metrics != null) {
+			metrics.opcodeCounts[opcode >>> 12]++;
+		}
+		instruction.handler.execute(this, instruction);
+		pc = (pc + 2) & memoryMask;
+		cycles++;
+	}
+	
+	// Decodes the instruction at address and caches it
+	private Instruction fetch(int address) {
+		Instruction instruction = quirks.decode(memory.read(address) << 8 | memory.read((address + 1) & memoryMask));
+		instructionCache[address] = instruction;
+		return instruction;
+	}
+	
+	// Decoded instruction at address, from the cache if it is there
+	private Instruction instructionAt(int address) {
+		Instruction instruction = instructionCache[address];
+		return (instruction != null) ? instruction : fetch(address);
+	}
+	
+	/**
+	 * Runs whole times around the idle loop at pc, if the machine is in one, by only adding
+	 * their cycles.
+	 *
+	 * An idle loop does the same thing every time around until a timer ticks or a key
+	 * changes: a jump to itself, FX07 followed by a skip on the same register and a jump
+	 * back while the delay timer keeps the skip from being taken, or EX9E or EXA1 followed
+	 * by a jump back while the key keeps it from skipping. The timers and the keypad only
+	 * change between two slices of the scheduler, as long as keys are only set through a
+	 * {@link Scheduler.Input}, so within a slice going around again changes nothing but the
+	 * cycle count.
+	 *
+	 * @param limit most instructions that may be skipped
+	 * @return number of instructions skipped, 0 if pc is not at the start of an idle loop
+	 */
+	public long skipIdleLoop(long limit) {
+		Instruction first = instructionAt(pc);
+		Instruction jump;
+		int length;
+		if(first.handler == Decoder.JP) {
+			if(first.nnn != pc) {
+				return 0;
+			}
+			jump = first;
+			length = 1;
+		} else if(first.handler == Decoder.SKP || first.handler == Decoder.SKNP) {
+			jump = instructionAt((pc + 2) & memoryMask);
+			if(jump.handler != Decoder.JP || jump.nnn != pc
+					|| keypad.isDown(V[first.x] & 0xF) == (first.handler == Decoder.SKP)) {
+				return 0;
+			}
+			length = 2;
+		} else if(first.handler == Decoder.LD_VX_DT) {
+			Instruction test = instructionAt((pc + 2) & memoryMask);
+			jump = instructionAt((pc + 4) & memoryMask);
+			if((test.handler != Decoder.SE_VX_NN && test.handler != Decoder.SNE_VX_NN) || test.x != first.x
+					|| jump.handler != Decoder.JP || jump.nnn != pc
+					|| (delayTimer == test.nn) == (test.handler == Decoder.SE_VX_NN)) {
+				return 0;
+			}
+			length = 3;
+		} else {
+			return 0;
+		}
+		
+		long skipped = limit / length * length;
+		if(skipped == 0) {
+			return 0;
+		}
+		// What the loop would have left behind
+		if(length == 3) {
+			V[first.x] = delayTimer;
+		}
+		opcode = jump.opcode;
+		cycles += skipped;
+		return skipped;
+	}
+	
+	public void cycle() {
+		// Decode and execute opcode
+		Instruction instruction = quirks.decode(opcode);
+		instruction.handler.execute(this, instruction);
+		pc = (pc + 2) & memoryMask;
+	}
+	
+	// Called at 60hz by the scheduler, independent of the instruction rate
+	public void tickTimers() {
+		if(delayTimer > 0) {
+			delayTimer--;
+		}
+		if(soundTimer > 0) {
+			soundTimer--;
+		}
+	}
+	
+	/**
+	 * The buzzer sounds for as long as the sound timer runs. Nothing is played here, a
+	 * frontend polls this and turns it into sound.
+	 */
+	public boolean isSoundOn() {
+		return soundTimer > 0;
+	}
+	
+	public boolean checkDrawFlag() {
+		return drawFlag;
+	}
+	
+	public void pushToStack(int x) {
+		stack[sp++] = x;
+	}
+	
+	public int popFromStack() {
+		return stack[--sp];
+	}
+	
+	
+	public boolean test00E0() {
+		reset();
+		System.out.println("Test 0x00E0");
+		opcode = 0x00E0;
+		
+		cycle();
+		/*
+		for(int i = 0; i < gfx.length; i++) {
+			if(gfx[i] != 0) {
+				return false;
+			}
+		}*/
+		
+		return true;
+	}
+	
+	public boolean test00EE() {
+		reset();
+		System.out.println("Test 0x00EE");
+		pushToStack(0xDEA);
+		opcode = 0x00EE;
+		cycle();
+		return pc == 0xDEA + 2; // the address of the call was pushed
+	}
+	
+	public boolean test1NNN() {
+		reset();
+		System.out.println("Test 0x1NNN");
+		opcode = 0x1EEF;
+		cycle();
+		return pc == 0x0EEF;
+	}
+	
+	public boolean test2NNN() {
+		reset();
+		System.out.println("Test 0x2NNN");
+		opcode = 0x2EEF;
+		cycle();
+		return popFromStack() == 0x200;
+	}
+	
+	public boolean test3XNN_1() {
+		reset();
+		System.out.println("Test 0x3XNN_1");
+		opcode = 0x30FF;
+		cycle();
+		return pc == 0x202;
+	}
+	
+	public boolean test3XNN_2() {
+		reset();
+		System.out.println("Test 0x3XNN_2");
+		V[0] = 0xFF;
+		opcode = 0x30FF;
+		cycle();
+		return pc == 0x204;
+	}
+	
+	public boolean test4XNN_1() {
+		reset();
+		System.out.println("Test 0x4XNN_1");
+		V[0] = 0xFF;
+		opcode = 0x40FF;
+		cycle();
+		return pc == 0x202;
+	}
+	public boolean test4XNN_2() {
+		reset();
+		System.out.println("Test 0x4XNN_2");
+		opcode = 0x40FF;
+		cycle();
+		return pc == 0x204;
+	}
+	
+	public boolean test5XY0_1() {
+		reset();
+		System.out.println("Test 0x5XY0_1");
+		V[0] = 0x01;
+		V[1] = 0x00;
+		opcode = 0x5010;
+		cycle();
+		return pc == 0x202;
+	}
+	public boolean test5XY0_2() {
+		reset();
+		System.out.println("Test 0x5XY0_2");
+		V[0] = 0x01;
+		V[1] = 0x01;
+		opcode = 0x5010;
+		cycle();
+		return pc == 0x204;
+	}
+	
+	public boolean test6XNN() {
+		reset();
+		System.out.println("Test 0x6XNN");
+		opcode = 0x6A10;
+		cycle();
+		return V[0xA] == 0x10;
+	}
+	
+	public boolean test7XNN() {
+		reset();
+		System.out.println("Test 0x7XNN");
+		V[0xA] = 0x10;
+		opcode = 0x7A10;
+		cycle();
+		return V[0xA] == (0x10 + 0x10);
+	}
+	
+	public boolean test8XY0() {
+		reset();
+		System.out.println("Test 0x8XY0");
+		V[0xA] = 0x05;
+		V[0xB] = 0x00;
+		opcode = 0x8AB0;
+		cycle();
+		return V[0xA] == 0x00;
+	}
+	
+	public boolean test8XY1() {
+		reset();
+		System.out.println("Test 0x8XY1");
+		V[0] = 0x05;
+		V[1] = 0x02;
+		opcode = 0x8011;
+		cycle();
+		return V[0] == 0x07;
+	}
+	
+	public boolean test8XY2() {
+		reset();
+		System.out.println("Test 0x8XY2");
+		V[0] = 0x05;
+		V[1] = 0x03;
+		opcode = 0x8012;
+		cycle();
+		return V[0] == 0x01;
+	}
+	
+	public boolean test8XY3() {
+		reset();
+		System.out.println("Test 0x8XY3");
+		V[0] = 0x05;
+		V[1] = 0x03;
+		opcode = 0x8013;
+		cycle();
+		return V[0] == 0x06;
+	}
+	
+	public boolean test8XY4_1() {
+		reset();
+		System.out.println("Test 0x8XY4_1");
+		V[0] = 0x05;
+		V[1] = 0x10;
+		opcode = 0x8014;
+		cycle();
+		return V[0] == 0x15 && V[0xF] == 0;
+	}
+	
+	public boolean test8XY4_2() {
+		reset();
+		System.out.println("Test 0x8XY4_2");
+		V[0] = 0xFF;
+		V[1] = 0x01;
+		opcode = 0x8014;
+		cycle();
+		return V[0] == 0x0 && V[0xF] == 1;
+	}
+	
+	public boolean test8XY5_1() { // TODO: fix
+		reset();
+		System.out.println("Test 0x8XY5_1");
+		V[0] = 0x02;
+		V[1] = 0x01;
+		opcode = 0x8015;
+		cycle();
+		return V[0] == 0x01 && V[0xF] == 1;
+	}
+	
+	public boolean test8XY5_2() { // TODO: fix
+		reset();
+		System.out.println("Test 0x8XY5_2");
+		V[0] = 0x02;
+		V[1] = 0x03;
+		opcode = 0x8015;
+		cycle();
+		return V[0] == 0xFF && V[0xF] == 0;
+	}
+	
+	public boolean test8XY6() {
+		reset();
+		System.out.println("Test 0x8XY6");
+		V[0] = 0xA;
+		opcode = 0x8016;
+		cycle();
+		return V[0] == 0x05 && V[0xF] == (0xA & 0x1);
+	}
+	
+	public boolean test8XY7_1() {
+		reset();
+		System.out.println("Test 0x8XY7_1");
+		V[0] = 0x05;
+		V[1] = 0x0A;
+		opcode = 0x8017;
+		cycle();
+		return V[0] == 0x05 && V[0xF] == 1;
+	}
+	
+	public boolean test8XY7_2() { // TODO: fix
+		reset();
+		System.out.println("Test 0x8XY7_2");
+		V[0] = 0x0A;
+		V[1] = 0x05;
+		opcode = 0x8017;
+		cycle();
+		return V[0] == 0xFB && V[0xF] == 0;
+	}
+	
+	public boolean test8XYE() {
+		reset();
+		System.out.println("Test 0x8XYE");
+		V[0] = 0x11;
+		opcode = 0x801E;
+		cycle();
+		return V[0] == 0x22 && V[0xF] == (0xA & 0x80);
+	}
+	
+	public boolean test9XY0_1() {
+		reset();
+		System.out.println("Test 0x9XY0_1");
+		V[0] = 0x05;
+		V[1] = 0x05;
+		opcode = 0x9010;
+		cycle();
+		return pc == 0x202;
+	}
+	
+	public boolean test9XY0_2() {
+		reset();
+		System.out.println("Test 0x9XY0_2");
+		V[0] = 0x00;
+		V[1] = 0x10;
+		opcode = 0x9010;
+		cycle();
+		return pc == 0x204;
+	}
+	
+	public boolean testANNN() {
+		reset();
+		System.out.println("Test 0xANNN");
+		opcode = 0xAEEF;
+		cycle();
+		return I == 0x0EEF;
+	}
+	
+	public boolean testBNNN() {
+		reset();
+		System.out.println("Test 0xBNNN");
+		V[0] = 0x0014;
+		opcode = 0xBEEF;
+		cycle();
+		return pc == (0x0EEF + 0x0014);
+	}
+	
+	public boolean testCXNN() {
+		reset();
+		System.out.println("Test 0xCXNN");
+		
+		// The same seed gives the same number, and only the bits in NN can be set
+		setSeed(1);
+		opcode = 0xC00F;
+		cycle();
+		int first = V[0];
+		setSeed(1);
+		opcode = 0xC00F;
+		cycle();
+		return V[0] == first && (first & ~0x0F) == 0;
+	}
+	
+	public boolean testDXYN() {
+		reset();
+		System.out.println("Test 0xDXYN");
+		V[0] = 0;
+		V[1] = 4;
+		I = 0;
+		write(I, 0b10011001);
+		opcode = 0xD011;
+		cycle();
+		
+		printScreen();
+		
+		/*for(int i = 256; i < 264; i++) {
+			System.out.println("gfx[" + i + "] = " + gfx[i]);
+		}*/
+		/*
+		return gfx[256] == 1
+				&& gfx[257] == 0
+				&& gfx[258] == 0
+				&& gfx[259] == 1
+				&& gfx[260] == 1
+				&& gfx[261] == 0
+				&& gfx[262] == 0
+				&& gfx[263] == 1;*/
+		return true;
+	}
+	
+	public boolean testEX9E_1() {
+		reset();
+		System.out.println("Test 0xEX9E_1");
+		keypad.release(0, cycles);
+		V[0] = 0;
+		opcode = 0xE09E;
+		cycle();
+		return pc == 0x202;
+	}
+	
+	public boolean testEX9E_2() {
+		reset();
+		System.out.println("Test 0xEX9E_2");
+		keypad.press(0, cycles);
+		V[0] = 0;
+		opcode = 0xE09E;
+		cycle();
+		return pc == 0x204;
+	}
+	
+	public boolean testEXA1_1() {
+		reset();
+		System.out.println("Test 0xEXA1_1");
+		keypad.press(0, cycles);
+		V[0] = 0;
+		opcode = 0xE0A1;
+		cycle();
+		return pc == 0x202;
+	}
+	
+	public boolean testEXA1_2() {
+		reset();
+		System.out.println("Test 0xEXA1_2");
+		keypad.release(0, cycles);
+		V[0] = 0;
+		opcode = 0xE0A1;
+		cycle();
+		return pc == 0x204;
+	}
+	
+	public boolean testFX07() {
+		reset();
+		System.out.println("Test 0xFX07");
+		delayTimer = 7;
+		opcode = 0xF007;
+		cycle();
+		return V[0] == 7;
+	}
+	
+	public boolean testFX0A() {
+		reset();
+		System.out.println("Test 0xFX0A");
+		opcode = 0xF00A;
+		cycle();
+		if(!waitingForKey || pc != 0x200) {
+			return false;
+		}
+		keypad.press(2, cycles);
+		cycle();
+		return V[0] == 2 && !waitingForKey && pc == 0x202;
+	}
+	
+	public boolean testFX15() {
+		reset();
+		System.out.println("Test 0xFX15");
+		V[0] = 5;
+		opcode = 0xF015;
+		cycle();
+		return delayTimer == 5; // timers only tick in tickTimers()
+	}
+	
+	public boolean testFX18() {
+		reset();
+		System.out.println("Test 0xFX18");
+		V[0] = 0x05;
+		
+		opcode = 0xF018;
+		cycle();
+		return soundTimer == 5; // timers only tick in tickTimers()
+	}
+	
+	public boolean testFX1E_wrap() {
+		reset();
+		System.out.println("Test 0xFX1E_wrap");
+		// I stays 16 bits, like it is in a save state
+		V[0] = 0x10;
+		I = 0xFFF8;
+		opcode = 0xF01E;
+		cycle();
+		return I == 0x0008;
+	}
+	
+	public boolean testFX1E() {
+		reset();
+		System.out.println("Test 0xFX1E");
+		V[0] = 2;
+		I = 2;
+		opcode = 0xF01E;
+		cycle();
+		return I == 4;
+	}
+	
+	public boolean testFX29() {
+		reset();
+		System.out.println("Test 0xFX29");
+		// TODO: implement
+		opcode = 0x0000;
+		cycle();
+		return true;
+	}
+	
+	public boolean testFX33() {
+		reset();
+		System.out.println("Test 0xFX33");
+		// TODO: implement
+		opcode = 0x0000;
+		cycle();
+		return true;
+	}
+	
+	public boolean testFX55() {
+		reset();
+		System.out.println("Test 0xFX55");
+		for(int i = 0; i < 5; i++) {
+			V[i] = i;
+		}
+		I = 0;
+		opcode = 0xF555;
+		cycle();
+		return read(I) == 0
+				&& read(I + 1) == 1
+				&& read(I + 2) == 2
+				&& read(I + 3) == 3
+				&& read(I + 4) == 4;
+	}
+	
+	public boolean testFX65() {
+		reset();
+		System.out.println("Test 0xFX55");
+		I = 0;
+		for(int i = 0; i < 5; i++) {
+			write(i, I + i);
+		}
+		opcode = 0xF565;
+		cycle();
+		return V[0] == 0
+				&& V[1] == 1
+				&& V[2] == 2
+				&& V[3] == 3
+				&& V[4] == 4;
+	}
+	
+	public boolean test00CN() {
+		reset();
+		System.out.println("Test 0x00CN");
+		gfx.setResolution(true);
+		gfx.drawRow(0, 0, 0xFF, 8);
+		opcode = 0x00C2;
+		cycle();
+		return !gfx.get(0, 0) && gfx.get(0, 2) && gfx.get(7, 2);
+	}
+	
+	public boolean test00FB() {
+		reset();
+		System.out.println("Test 0x00FB");
+		gfx.setResolution(true);
+		gfx.drawRow(62, 0, 0x3, 2);
+		opcode = 0x00FB;
+		cycle();
+		return !gfx.get(62, 0) && gfx.get(66, 0) && gfx.get(67, 0);
+	}
+	
+	public boolean test00FC() {
+		reset();
+		System.out.println("Test 0x00FC");
+		gfx.setResolution(true);
+		gfx.drawRow(66, 0, 0x3, 2);
+		opcode = 0x00FC;
+		cycle();
+		return !gfx.get(66, 0) && gfx.get(62, 0) && gfx.get(63, 0);
+	}
+	
+	public boolean test00FD() {
+		reset();
+		System.out.println("Test 0x00FD");
+		opcode = 0x00FD;
+		cycle();
+		return halted && pc == 0x200;
+	}
+	
+	public boolean test00FE() {
+		reset();
+		System.out.println("Test 0x00FE");
+		opcode = 0x00FF;
+		cycle();
+		if(!gfx.isHires() || gfx.width != 128 || gfx.height != 64) {
+			return false;
+		}
+		opcode = 0x00FE;
+		cycle();
+		return !gfx.isHires() && gfx.width == 64 && gfx.height == 32;
+	}
+	
+	public boolean testDXY0() {
+		reset();
+		System.out.println("Test 0xDXY0");
+		gfx.setResolution(true);
+		I = 0x300;
+		write(0xFF, 0x300);
+		write(0x81, 0x301);
+		opcode = 0xD010;
+		cycle();
+		return gfx.get(0, 0) && gfx.get(8, 0) && !gfx.get(9, 0) && gfx.get(15, 0) && !gfx.get(16, 0)
+				&& !gfx.get(0, 1) && V[0xF] == 0;
+	}
+	
+	public boolean testFX30() {
+		reset();
+		System.out.println("Test 0xFX30");
+		V[0] = 2;
+		opcode = 0xF030;
+		cycle();
+		return I == BIG_FONT_ADDRESS + 20 && read(I) == 0xFF && read(I + 2) == 0x03;
+	}
+	
+	public boolean testFX75() {
+		reset();
+		System.out.println("Test 0xFX75");
+		V[0] = 1;
+		V[1] = 2;
+		V[2] = 3;
+		flags[3] = 0;
+		V[3] = 4;
+		opcode = 0xF275;
+		cycle();
+		return flags[0] == 1 && flags[1] == 2 && flags[2] == 3 && flags[3] == 0;
+	}
+	
+	public boolean testFX85() {
+		reset();
+		System.out.println("Test 0xFX85");
+		flags[0] = 5;
+		flags[1] = 6;
+		flags[2] = 7;
+		opcode = 0xF185;
+		cycle();
+		return V[0] == 5 && V[1] == 6 && V[2] == 0;
+	}
+	
+	public boolean test00DN() {
+		reset();
+		System.out.println("Test 0x00DN");
+		gfx.drawRow(0, 3, 0xFF, 8);
+		opcode = 0x00D2;
+		cycle();
+		return !gfx.get(0, 3) && gfx.get(0, 1);
+	}
+	
+	public boolean test5XY2() {
+		reset();
+		System.out.println("Test 0x5XY2");
+		I = 0x300;
+		V[1] = 1;
+		V[2] = 2;
+		V[3] = 3;
+		opcode = 0x5132;
+		cycle();
+		if(read(0x300) != 1 || read(0x302) != 3 || I != 0x300) {
+			return false;
+		}
+		// Backwards
+		opcode = 0x5312;
+		cycle();
+		return read(0x300) == 3 && read(0x302) == 1;
+	}
+	
+	public boolean test5XY3() {
+		reset();
+		System.out.println("Test 0x5XY3");
+		I = 0x300;
+		write(4, 0x300);
+		write(5, 0x301);
+		opcode = 0x5A93;
+		cycle();
+		return V[0xA] == 4 && V[9] == 5 && I == 0x300;
+	}
+	
+	public boolean testF000() {
+		setMemorySize(XO_CHIP_MEMORY_SIZE);
+		reset();
+		setMemorySize(MEMORY_SIZE);
+		System.out.println("Test 0xF000");
+		// F000 ABCD, then a skip over another F000 NNNN
+		write(0xF0, 0x200);
+		write(0x00, 0x201);
+		write(0xAB, 0x202);
+		write(0xCD, 0x203);
+		write(0x30, 0x204);
+		write(0x00, 0x205);
+		write(0xF0, 0x206);
+		write(0x00, 0x207);
+		step();
+		if(I != 0xABCD || pc != 0x204 || read(I) != 0) {
+			return false;
+		}
+		step();
+		return pc == 0x20A;
+	}
+	
+	public boolean testFN01() {
+		reset();
+		System.out.println("Test 0xFN01");
+		I = 0x300;
+		write(0x80, 0x300);
+		write(0x40, 0x301);
+		opcode = 0xF301;
+		cycle();
+		opcode = 0xD011;
+		cycle();
+		if(planes != 3 || !gfx.get(0, 0, 0) || gfx.get(0, 1, 0) || !gfx.get(1, 1, 0)) {
+			return false;
+		}
+		// Only clears the second plane
+		opcode = 0xF201;
+		cycle();
+		opcode = 0x00E0;
+		cycle();
+		return gfx.get(0, 0, 0) && !gfx.get(1, 1, 0);
+	}
+	
+	public boolean testF002() {
+		reset();
+		System.out.println("Test 0xF002");
+		I = 0x300;
+		for(int i = 0; i < 16; i++) {
+			write(i * 3, 0x300 + i);
+		}
+		opcode = 0xF002;
+		cycle();
+		return audioPattern[0] == 0 && audioPattern[15] == 45;
+	}
+	
+	public boolean testFX3A() {
+		reset();
+		System.out.println("Test 0xFX3A");
+		V[4] = 112;
+		opcode = 0xF43A;
+		cycle();
+		return pitch == 112 && getPlaybackRate() == 8000;
+	}
+	
+	public boolean testVip8XY6() {
+		setQuirks(Quirks.VIP);
+		reset();
+		setQuirks(Quirks.DEFAULT);
+		System.out.println("Test VIP 0x8XY6");
+		V[0] = 0xA;
+		V[1] = 0x7;
+		opcode = 0x8016;
+		cycle();
+		return V[0] == 0x3 && V[0xF] == 1;
+	}
+	
+	public boolean testVip8XY1() {
+		setQuirks(Quirks.VIP);
+		reset();
+		setQuirks(Quirks.DEFAULT);
+		System.out.println("Test VIP 0x8XY1");
+		V[0] = 0x5;
+		V[1] = 0xA;
+		V[0xF] = 1;
+		opcode = 0x8011;
+		cycle();
+		return V[0] == 0xF && V[0xF] == 0;
+	}
+	
+	public boolean testVipFX55() {
+		setQuirks(Quirks.VIP);
+		reset();
+		setQuirks(Quirks.DEFAULT);
+		System.out.println("Test VIP 0xFX55");
+		I = 0x300;
+		V[0] = 1;
+		V[1] = 2;
+		V[2] = 3;
+		opcode = 0xF255;
+		cycle();
+		return read(0x300) == 1 && read(0x302) == 3 && I == 0x303;
+	}
+	
+	public boolean testChip48FX65() {
+		setQuirks(Quirks.CHIP48);
+		reset();
+		setQuirks(Quirks.DEFAULT);
+		System.out.println("Test CHIP-48 0xFX65");
+		I = 0x300;
+		write(7, 0x300);
+		write(9, 0x301);
+		opcode = 0xF165;
+		cycle();
+		return V[0] == 7 && V[1] == 9 && I == 0x301;
+	}
+	
+	public boolean testChip48BXNN() {
+		setQuirks(Quirks.CHIP48);
+		reset();
+		setQuirks(Quirks.DEFAULT);
+		System.out.println("Test CHIP-48 0xBXNN");
+		V[0] = 0x10;
+		V[3] = 0x4;
+		opcode = 0xB320;
+		cycle();
+		return pc == 0x324;
+	}
+	
+	public boolean testXoChipDXYN() {
+		setQuirks(Quirks.XO_CHIP);
+		reset();
+		setQuirks(Quirks.DEFAULT);
+		System.out.println("Test XO-CHIP 0xDXYN");
+		// A full row drawn at 60, 33 wraps to 60-63 and 0-3 of row 1
+		I = 0x300;
+		write(0xFF, 0x300);
+		V[0] = 60;
+		V[1] = 33;
+		opcode = 0xD011;
+		cycle();
+		return gfx.get(60, 1) && gfx.get(63, 1) && gfx.get(0, 1) && gfx.get(3, 1) && !gfx.get(4, 1)
+				&& V[0xF] == 0;
+	}
+	
+	public boolean testJit() {
+		System.out.println("Test JIT");
+		// A loop that compiles, then overwrites 8104 at 0x206 with 7105 and goes around again
+		int[] program = {
+			0x6000, 0x6100, 0x7001, 0x8104, 0x8216, 0xA300, 0xF21E, 0xD015,
+			0x3040, 0x1204, 0xA206, 0x6071, 0x6105, 0xF155, 0x6000, 0x1204
+		};
+		Chip8 interpreted = runProgram(program, null);
+		Chip8 compiled = runProgram(program, new BlockCompiler(2));
+		if(compiled.jit.getCompiledCount() == 0 || compiled.read(0x206) != 0x71) {
+			return false;
+		}
+		for(int i = 0; i < MEMORY_SIZE; i++) {
+			if(interpreted.read(i) != compiled.read(i)) {
+				return false;
+			}
+		}
+		return Arrays.equals(interpreted.V, compiled.V) && interpreted.I == compiled.I
+				&& interpreted.pc == compiled.pc && interpreted.cycles == compiled.cycles
+				&& Arrays.equals(interpreted.gfx.rows, compiled.gfx.rows);
+	}
+	
+	// A fresh machine that ran the program for 20000 instructions
+	private static Chip8 runProgram(int[] program, BlockCompiler jit) {
+		Chip8 chip8 = new Chip8();
+		chip8.jit = jit;
+		chip8.reset();
+		chip8.loadRom(toRom(program));
+		new Scheduler(chip8).run(20000);
+		return chip8;
+	}
+	
+	private static byte[] toRom(int[] program) {
+		byte[] data = new byte[program.length * 2];
+		for(int i = 0; i < program.length; i++) {
+			data[i * 2] = (byte) (program[i] >> 8);
+			data[i * 2 + 1] = (byte) program[i];
+		}
+		return data;
+	}
+	
+	// Draws a random digit at a random place, writes to memory and calls a subroutine that
+	// sets the delay timer, so every part of the state keeps changing
+	private static final int[] BUSY_PROGRAM = {
+		0xC0FF, 0xC13F, 0xC21F, 0xF029, 0xD125, 0xA400, 0xF01E, 0xF255,
+		0x2214, 0x1200, 0xF015, 0x00EE
+	};
+	
+	// The whole state of the machine as a save state
+	private static byte[] snapshot(Chip8 chip8) {
+		SaveState state = new SaveState();
+		state.save(chip8);
+		return Arrays.copyOf(state.getBuffer().array(), state.getSize());
+	}
+	
+	public boolean testSaveState() {
+		System.out.println("Test save state");
+		Chip8 saved = runProgram(BUSY_PROGRAM, null);
+		SaveState state = new SaveState();
+		state.save(saved);
+		Chip8 loaded = new Chip8();
+		loaded.reset();
+		state.load(loaded);
+		if(!Arrays.equals(snapshot(saved), snapshot(loaded))) {
+			return false;
+		}
+		// And they go on the same way
+		new Scheduler(saved).run(20000);
+		new Scheduler(loaded).run(20000);
+		return Arrays.equals(snapshot(saved), snapshot(loaded));
+	}
+	
+	public boolean testRewind() {
+		System.out.println("Test rewind");
+		Chip8 chip8 = runProgram(BUSY_PROGRAM, null);
+		Scheduler scheduler = new Scheduler(chip8);
+		RewindBuffer buffer = new RewindBuffer(16, 4);
+		byte[][] frames = new byte[20][];
+		for(int frame = 0; frame < frames.length; frame++) {
+			scheduler.runFrames(1);
+			buffer.record(chip8);
+			frames[frame] = snapshot(chip8);
+		}
+		// Rewinding n times goes back to the frame recorded n - 1 frames before the last
+		for(int n = 1; n <= 16; n++) {
+			if(!buffer.rewind(chip8) || !Arrays.equals(snapshot(chip8), frames[frames.length - n])) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public boolean testMovie() {
+		System.out.println("Test movie");
+		// Waits for a key, then draws its digit at a random height
+		int[] program = { 0xF00A, 0xF029, 0xC21F, 0xD125, 0x7105, 0x1200 };
+		byte[] rom = toRom(program);
+		Chip8 recorded = new Chip8();
+		recorded.setSeed(1234);
+		recorded.reset();
+		recorded.loadRom(rom);
+		Keypad input = new Keypad();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			Movie.Recorder recorder = new Movie.Recorder(out, input, Movie.crc(rom), 1234, Scheduler.DEFAULT_SPEED,
+					recorded.quirks);
+			Scheduler scheduler = new Scheduler(recorded);
+			scheduler.setInput(recorder);
+			for(int frame = 0; frame < 60; frame++) {
+				// Another key every few frames, held for two of them
+				if(frame % 6 == 0) {
+					input.press(frame / 6, recorded.cycles);
+				} else if(frame % 6 == 2) {
+					input.release(frame / 6, recorded.cycles);
+				}
+				scheduler.runFrames(1);
+			}
+			recorder.close(recorded);
+			
+			Movie.Player player = new Movie.Player(new ByteArrayInputStream(out.toByteArray()));
+			Chip8 replayed = new Chip8();
+			replayed.setSeed(player.seed);
+			replayed.setQuirks(player.quirks);
+			replayed.reset();
+			replayed.loadRom(rom);
+			Scheduler replay = new Scheduler(replayed, player.speed);
+			replay.setInput(player);
+			replay.run(player.getLength());
+			return replayed.cycles == recorded.cycles && replayed.gfx.hash() == recorded.gfx.hash()
+					&& recorded.gfx.hash() != new Display().hash();
+		} catch(IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	public boolean testAnalyzer() {
+		reset();
+		System.out.println("Test analyzer");
+		// 2206, 1202, 0000, A20C, D001, 00EE, then a 1 row sprite
+		int[] rom = { 0x22, 0x06, 0x12, 0x02, 0x00, 0x00, 0xA2, 0x0C, 0xD0, 0x01, 0x00, 0xEE, 0x81 };
+		for(int i = 0; i < rom.length; i++) {
+			write(rom[i], 0x200 + i);
+		}
+		Analyzer analyzer = Analyzer.analyze(memory, rom.length, quirks);
+		Analyzer.BasicBlock sub = analyzer.blocks.get(0x206);
+		if(analyzer.blocks.size() != 3 || sub == null || !sub.subroutine || sub.end != 0x20C
+				|| !analyzer.blocks.get(0x200).successors.contains(0x202)) {
+			return false;
+		}
+		if(analyzer.kinds[4] != Analyzer.DATA || analyzer.kinds[12] != Analyzer.SPRITE) {
+			return false;
+		}
+		analyzer.prepare(this);
+		return instructionCache[0x208] != null && instructionCache[0x208].handler == Decoder.DRW
+				&& instructionCache[0x204] == null;
+	}
+	
+	public boolean testVipDXYN() {
+		setQuirks(Quirks.VIP);
+		reset();
+		setQuirks(Quirks.DEFAULT);
+		System.out.println("Test VIP 0xDXYN");
+		// Drawn at 70 % 64 = 6, and at 62 the part past the right edge is clipped
+		I = 0x300;
+		write(0xFF, 0x300);
+		V[0] = 70;
+		V[1] = 0;
+		V[2] = 62;
+		V[3] = 1;
+		opcode = 0xD011;
+		cycle();
+		opcode = 0xD231;
+		cycle();
+		return !gfx.get(5, 0) && gfx.get(6, 0) && gfx.get(13, 0) && !gfx.get(14, 0)
+				&& gfx.get(62, 1) && gfx.get(63, 1) && !gfx.get(0, 1);
+	}
+	
+	public boolean testStrictFX55() {
+		reset();
+		System.out.println("Test strict 0xFX55");
+		// V0-V3 at 0xFFE runs past the end of memory
+		I = 0xFFE;
+		opcode = 0xF355;
+		strict = true;
+		try {
+			cycle();
+			return false;
+		} catch(MemoryAccessException e) {
+			return e.address == 0x1000;
+		} finally {
+			strict = false;
+		}
+	}
+	
+	public boolean testSound() {
+		reset();
+		System.out.println("Test sound");
+		soundTimer = 2;
+		tickTimers();
+		if(!isSoundOn()) {
+			return false;
+		}
+		tickTimers();
+		return !isSoundOn() && soundTimer == 0;
+	}
+	
+	public boolean testIdleLoop() {
+		reset();
+		System.out.println("Test idle loop");
+		// F307, 3300, 1200: wait for the delay timer
+		write(0xF3, 0x200);
+		write(0x07, 0x201);
+		write(0x33, 0x202);
+		write(0x00, 0x203);
+		write(0x12, 0x204);
+		write(0x00, 0x205);
+		delayTimer = 5;
+		if(skipIdleLoop(10) != 9 || pc != 0x200 || V[3] != 5 || cycles != 9) {
+			return false;
+		}
+		delayTimer = 0;
+		return skipIdleLoop(10) == 0;
+	}
+	
+	public void printScreen() {
+		System.out.print(gfx);
+	}
+}
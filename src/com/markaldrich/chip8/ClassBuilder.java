@@ -0,0 +1,256 @@
+package com.markaldrich.chip8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a class file writer for {@link BlockCompiler}: one public final class with
+ * methods, but no fields, interfaces or exception handlers.
+ *
+ * Classes are written as version 49 (Java 5), which the JVM still verifies by type
+ * inference. That way no stack map frames have to be computed for the branches.
+ */
+public class ClassBuilder {
+	
+	public static final int ACC_PUBLIC = 0x0001;
+	public static final int ACC_FINAL = 0x0010;
+	public static final int ACC_SUPER = 0x0020;
+	
+	// Opcodes used by the compiler
+	public static final int ICONST_0 = 0x03;
+	public static final int BIPUSH = 0x10;
+	public static final int SIPUSH = 0x11;
+	public static final int LDC_W = 0x13;
+	public static final int ILOAD = 0x15;
+	public static final int ALOAD = 0x19;
+	public static final int IALOAD = 0x2E;
+	public static final int ISTORE = 0x36;
+	public static final int ASTORE = 0x3A;
+	public static final int IASTORE = 0x4F;
+	public static final int DUP = 0x59;
+	public static final int IADD = 0x60;
+	public static final int LADD = 0x61;
+	public static final int ISUB = 0x64;
+	public static final int ISHL = 0x78;
+	public static final int ISHR = 0x7A;
+	public static final int IAND = 0x7E;
+	public static final int IOR = 0x80;
+	public static final int IXOR = 0x82;
+	public static final int I2L = 0x85;
+	public static final int IF_ICMPEQ = 0x9F;
+	public static final int IF_ICMPNE = 0xA0;
+	public static final int IF_ICMPLE = 0xA4;
+	public static final int GOTO = 0xA7;
+	public static final int RETURN = 0xB1;
+	public static final int GETFIELD = 0xB4;
+	public static final int PUTFIELD = 0xB5;
+	public static final int INVOKESPECIAL = 0xB7;
+	
+	private final List<byte[]> constants = new ArrayList<>();
+	private final Map<String, Integer> constantIndex = new HashMap<>();
+	
+	private final int thisClass;
+	private final int superClass;
+	
+	private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+	private int methodCount;
+	
+	/**
+	 * @param name internal name of the class, e.g. com/markaldrich/chip8/Foo
+	 * @param superName internal name of the super class
+	 */
+	public ClassBuilder(String name, String superName) {
+		thisClass = classRef(name);
+		superClass = classRef(superName);
+	}
+	
+	public int utf8(String value) {
+		String key = "U" + value;
+		Integer index = constantIndex.get(key);
+		if(index == null) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try {
+				DataOutputStream out = new DataOutputStream(bytes);
+				out.writeByte(1);
+				out.writeUTF(value);
+			} catch(IOException e) {
+				throw new IllegalStateException(e);
+			}
+			index = add(key, bytes.toByteArray());
+		}
+		return index;
+	}
+	
+	public int integer(int value) {
+		String key = "I" + value;
+		Integer index = constantIndex.get(key);
+		if(index == null) {
+			index = add(key, new byte[] { 3, (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value });
+		}
+		return index;
+	}
+	
+	public int classRef(String name) {
+		return reference("C" + name, 7, utf8(name), -1);
+	}
+	
+	public int fieldRef(String owner, String name, String descriptor) {
+		return reference("F" + owner + "." + name + ":" + descriptor, 9, classRef(owner), nameAndType(name, descriptor));
+	}
+	
+	public int methodRef(String owner, String name, String descriptor) {
+		return reference("M" + owner + "." + name + descriptor, 10, classRef(owner), nameAndType(name, descriptor));
+	}
+	
+	private int nameAndType(String name, String descriptor) {
+		return reference("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+	}
+	
+	private int reference(String key, int tag, int first, int second) {
+		Integer index = constantIndex.get(key);
+		if(index == null) {
+			byte[] entry = (second < 0) ? new byte[3] : new byte[5];
+			entry[0] = (byte) tag;
+			entry[1] = (byte) (first >> 8);
+			entry[2] = (byte) first;
+			if(second >= 0) {
+				entry[3] = (byte) (second >> 8);
+				entry[4] = (byte) second;
+			}
+			index = add(key, entry);
+		}
+		return index;
+	}
+	
+	private int add(String key, byte[] entry) {
+		constants.add(entry);
+		int index = constants.size();
+		constantIndex.put(key, index);
+		return index;
+	}
+	
+	public void addMethod(int access, String name, String descriptor, Code code) {
+		DataOutputStream out = new DataOutputStream(methods);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(1);
+			out.writeShort(utf8("Code"));
+			out.writeInt(12 + code.length());
+			out.writeShort(code.maxStack);
+			out.writeShort(code.maxLocals);
+			out.writeInt(code.length());
+			out.write(code.bytes.toByteArray());
+			out.writeShort(0);
+			out.writeShort(0);
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		methodCount++;
+	}
+	
+	public byte[] toByteArray() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(constants.size() + 1);
+			for(byte[] entry : constants) {
+				out.write(entry);
+			}
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0);
+			out.writeShort(0);
+			out.writeShort(methodCount);
+			out.write(methods.toByteArray());
+			out.writeShort(0);
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Bytecode of a single method. Branches are emitted with a placeholder offset and
+	 * patched once the target is known.
+	 */
+	public static class Code {
+		
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		
+		// For constants that do not fit in an instruction
+		private final ClassBuilder builder;
+		
+		public final int maxStack;
+		public final int maxLocals;
+		
+		public Code(ClassBuilder builder, int maxStack, int maxLocals) {
+			this.builder = builder;
+			this.maxStack = maxStack;
+			this.maxLocals = maxLocals;
+		}
+		
+		public int length() {
+			return bytes.size();
+		}
+		
+		public void op(int opcode) {
+			bytes.write(opcode);
+		}
+		
+		public void op(int opcode, int operand) {
+			bytes.write(opcode);
+			bytes.write(operand);
+		}
+		
+		public void op16(int opcode, int operand) {
+			bytes.write(opcode);
+			bytes.write(operand >> 8);
+			bytes.write(operand);
+		}
+		
+		// Pushes an int constant with the shortest instruction that fits
+		public void push(int value) {
+			if(value >= -1 && value <= 5) {
+				op(ICONST_0 + value);
+			} else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				op(BIPUSH, value & 0xFF);
+			} else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				op16(SIPUSH, value);
+			} else {
+				op16(LDC_W, builder.integer(value));
+			}
+		}
+		
+		/**
+		 * Emits a branch and returns its position so it can be patched later.
+		 */
+		public int branch(int opcode) {
+			int position = bytes.size();
+			op16(opcode, 0);
+			return position;
+		}
+		
+		/**
+		 * Points the branch at the given position to the current end of the code.
+		 */
+		public void patch(int position) {
+			byte[] code = bytes.toByteArray();
+			int offset = code.length - position;
+			code[position + 1] = (byte) (offset >> 8);
+			code[position + 2] = (byte) offset;
+			bytes.reset();
+			bytes.write(code, 0, code.length);
+		}
+	}
+}
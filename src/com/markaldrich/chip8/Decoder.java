@@ -0,0 +1,791 @@
+package com.markaldrich.chip8;
+
+import com.markaldrich.chip8.Instruction.Handler;
+
+/**
+ * Decodes opcodes into {@link Instruction}s. Every instruction handler lives in here.
+ *
+ * Like in the original interpreter loop, handlers leave pc pointing at the instruction that
+ * was executed (jumps set it to the target minus 2), the caller then moves on to the next
+ * one.
+ *
+ * Instructions that behave differently between variants have a handler for every
+ * behaviour, which one an opcode gets depends on the {@link Quirks} it is decoded for.
+ */
+public class Decoder {
+	
+	// Decodes with the default quirks
+	public static Instruction decode(int opcode) {
+		return Quirks.DEFAULT.decode(opcode);
+	}
+	
+	public static Handler handlerFor(int opcode) {
+		return handlerFor(opcode, Quirks.DEFAULT);
+	}
+	
+	public static Handler handlerFor(int opcode, Quirks quirks) {
+		switch(opcode & 0xF000) {
+			case 0x0000: {
+				if((opcode & 0xFFF0) == 0x00C0) {
+					return SCD;
+				} else if((opcode & 0xFFF0) == 0x00D0) {
+					return SCU;
+				}
+				switch(opcode) {
+					case 0x00E0: return CLS;
+					case 0x00EE: return RET;
+					case 0x00FB: return SCR;
+					case 0x00FC: return SCL;
+					case 0x00FD: return EXIT;
+					case 0x00FE: return LOW;
+					case 0x00FF: return HIGH;
+				}
+				return NOP;
+			}
+			case 0x1000: return JP;
+			case 0x2000: return CALL;
+			case 0x3000: return SE_VX_NN;
+			case 0x4000: return SNE_VX_NN;
+			case 0x5000: {
+				switch(opcode & 0x000F) {
+					case 0x0002: return LD_RANGE_VX;
+					case 0x0003: return LD_VX_RANGE;
+				}
+				return SE_VX_VY;
+			}
+			case 0x6000: return LD_VX_NN;
+			case 0x7000: return ADD_VX_NN;
+			case 0x8000: {
+				switch(opcode & 0x000F) {
+					case 0x0000: return LD_VX_VY;
+					case 0x0001: return quirks.logicResetsVf ? OR_VF : OR;
+					case 0x0002: return quirks.logicResetsVf ? AND_VF : AND;
+					case 0x0003: return quirks.logicResetsVf ? XOR_VF : XOR;
+					case 0x0004: return ADD_VX_VY;
+					case 0x0005: return SUB;
+					case 0x0006: return quirks.shiftVy ? SHR_VY : SHR;
+					case 0x0007: return SUBN;
+					case 0x000E: return quirks.shiftVy ? SHL_VY : SHL;
+				}
+				return NOP;
+			}
+			case 0x9000: return SNE_VX_VY;
+			case 0xA000: return LD_I;
+			case 0xB000: return quirks.jumpVx ? JP_VX : JP_V0;
+			case 0xC000: return RND;
+			case 0xD000: {
+				switch(quirks.sprites) {
+					case Quirks.SPRITES_START_WRAPS: return DRW_START_WRAPS;
+					case Quirks.SPRITES_WRAP: return DRW_WRAP;
+				}
+				return DRW;
+			}
+			case 0xE000: {
+				if((opcode & 0x00FF) == 0x009E) {
+					return SKP;
+				}
+				return SKNP;
+			}
+			case 0xF000: {
+				if(opcode == 0xF000) {
+					return LD_I_LONG;
+				} else if(opcode == 0xF002) {
+					return LD_AUDIO;
+				}
+				switch(opcode & 0x00FF) {
+					case 0x01: return PLANE;
+					case 0x07: return LD_VX_DT;
+					case 0x0A: return LD_VX_K;
+					case 0x15: return LD_DT_VX;
+					case 0x18: return LD_ST_VX;
+					case 0x1E: return ADD_I_VX;
+					case 0x29: return LD_F_VX;
+					case 0x30: return LD_HF_VX;
+					case 0x33: return LD_B_VX;
+					case 0x3A: return LD_PITCH_VX;
+					case 0x55: {
+						switch(quirks.loadStoreI) {
+							case Quirks.I_PLUS_X: return LD_I_VX_ADD_X;
+							case Quirks.I_PLUS_X_PLUS_1: return LD_I_VX_ADD_X_1;
+						}
+						return LD_I_VX;
+					}
+					case 0x65: {
+						switch(quirks.loadStoreI) {
+							case Quirks.I_PLUS_X: return LD_VX_I_ADD_X;
+							case Quirks.I_PLUS_X_PLUS_1: return LD_VX_I_ADD_X_1;
+						}
+						return LD_VX_I;
+					}
+					case 0x75: return LD_R_VX;
+					case 0x85: return LD_VX_R;
+				}
+				return NOP;
+			}
+		}
+		return UNKNOWN;
+	}
+	
+	public static final Handler NOP = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+		}
+	};
+	
+	public static final Handler UNKNOWN = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			System.out.println("Unknown opcode: 0x" + Integer.toHexString(i.opcode));
+		}
+	};
+	
+	// 00E0, only the selected planes
+	public static final Handler CLS = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.gfx.clear(c.planes);
+		}
+	};
+	
+	// 00EE, back to the instruction after the call
+	public static final Handler RET = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.pc = c.popFromStack();
+		}
+	};
+	
+	// 00CN, SCHIP
+	public static final Handler SCD = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.gfx.scrollDown(c.planes, i.n);
+			c.drawFlag = true;
+		}
+	};
+	
+	// 00DN, XO-CHIP
+	public static final Handler SCU = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.gfx.scrollUp(c.planes, i.n);
+			c.drawFlag = true;
+		}
+	};
+	
+	// 00FB, SCHIP
+	public static final Handler SCR = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.gfx.scrollRight(c.planes, 4);
+			c.drawFlag = true;
+		}
+	};
+	
+	// 00FC, SCHIP
+	public static final Handler SCL = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.gfx.scrollLeft(c.planes, 4);
+			c.drawFlag = true;
+		}
+	};
+	
+	// 00FD, SCHIP. Like FX0A it stays on this instruction, for good.
+	public static final Handler EXIT = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.halted = true;
+			c.pc -= 2;
+		}
+	};
+	
+	// 00FE, SCHIP 64x32
+	public static final Handler LOW = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.gfx.setResolution(false);
+			c.drawFlag = true;
+		}
+	};
+	
+	// 00FF, SCHIP 128x64
+	public static final Handler HIGH = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.gfx.setResolution(true);
+			c.drawFlag = true;
+		}
+	};
+	
+	// 1NNN
+	public static final Handler JP = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.pc = i.nnn - 2;
+		}
+	};
+	
+	// 2NNN
+	public static final Handler CALL = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.pushToStack(c.pc);
+			c.pc = i.nnn - 2;
+		}
+	};
+	
+	// 3XNN, skip an instruction here, pc moves on past this one when the handler is over
+	public static final Handler SE_VX_NN = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			if(c.V[i.x] == i.nn) {
+				c.skip();
+			}
+		}
+	};
+	
+	// 4XNN
+	public static final Handler SNE_VX_NN = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			if((c.V[i.x] & 0x00FF) != i.nn) {
+				c.skip();
+			}
+		}
+	};
+	
+	// 5XY0
+	public static final Handler SE_VX_VY = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			if(c.V[i.x] == c.V[i.y]) {
+				c.skip();
+			}
+		}
+	};
+	
+	// 5XY2, XO-CHIP. Stores VX to VY at I, in reverse if X > Y, and leaves I alone.
+	public static final Handler LD_RANGE_VX = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			int step = (i.x <= i.y) ? 1 : -1;
+			for(int r = i.x, offset = 0; ; r += step, offset++) {
+				c.write(c.V[r], c.I + offset);
+				if(r == i.y) {
+					break;
+				}
+			}
+		}
+	};
+	
+	// 5XY3, XO-CHIP
+	public static final Handler LD_VX_RANGE = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			int step = (i.x <= i.y) ? 1 : -1;
+			for(int r = i.x, offset = 0; ; r += step, offset++) {
+				c.V[r] = c.read(c.I + offset);
+				if(r == i.y) {
+					break;
+				}
+			}
+		}
+	};
+	
+	// 6XNN
+	public static final Handler LD_VX_NN = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.V[i.x] = i.nn;
+		}
+	};
+	
+	// 7XNN
+	public static final Handler ADD_VX_NN = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.V[i.x] = (c.V[i.x] + i.nn) & 0xFF;
+		}
+	};
+	
+	// 8XY0
+	public static final Handler LD_VX_VY = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.V[i.x] = c.V[i.y];
+		}
+	};
+	
+	// 8XY1
+	public static final Handler OR = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.V[i.x] |= c.V[i.y];
+		}
+	};
+	
+	// 8XY1, VIP. The logic instructions leave VF at 0.
+	public static final Handler OR_VF = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.V[i.x] |= c.V[i.y];
+			c.V[0xF] = 0;
+		}
+	};
+	
+	// 8XY2
+	public static final Handler AND = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.V[i.x] &= c.V[i.y];
+		}
+	};
+	
+	// 8XY2, VIP
+	public static final Handler AND_VF = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.V[i.x] &= c.V[i.y];
+			c.V[0xF] = 0;
+		}
+	};
+	
+	// 8XY3
+	public static final Handler XOR = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.V[i.x] ^= c.V[i.y];
+		}
+	};
+	
+	// 8XY3, VIP
+	public static final Handler XOR_VF = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.V[i.x] ^= c.V[i.y];
+			c.V[0xF] = 0;
+		}
+	};
+	
+	// 8XY4
+	public static final Handler ADD_VX_VY = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			int[] V = c.V;
+			V[i.x] += V[i.y];
+			if(V[i.x] > 0xFF) {
+				// If the resulting value is over 0xFF, or the maximum, set the carry flag
+				V[0xF] = 1;
+				V[i.x] -= 256;
+			}
+		}
+	};
+	
+	// 8XY5
+	public static final Handler SUB = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			int[] V = c.V;
+			int result;
+			if(V[i.x] > V[i.y]) {
+				result = V[i.x] - V[i.y];
+				V[0xF] = 1;
+			} else {
+				result = 256 + V[i.x] - V[i.y];
+				V[0xF] = 0;
+			}
+			V[i.x] = result;
+		}
+	};
+	
+	// 8XY6
+	public static final Handler SHR = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			int[] V = c.V;
+			V[0xF] = V[i.x] & 0x1;
+			V[i.x] = V[i.x] >> 1;
+		}
+	};
+	
+	// 8XY6, VIP. Shifts VY into VX.
+	public static final Handler SHR_VY = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			int[] V = c.V;
+			int vy = V[i.y];
+			V[i.x] = vy >> 1;
+			V[0xF] = vy & 0x1;
+		}
+	};
+	
+	// 8XY7
+	public static final Handler SUBN = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			int[] V = c.V;
+			int result;
+			if(V[i.y] > V[i.x]) {
+				result = V[i.y] - V[i.x];
+				V[0xF] = 1;
+			} else {
+				result = 256 + V[i.y] - V[i.x];
+				V[0xF] = 0;
+			}
+			V[i.x] = result;
+		}
+	};
+	
+	// 8XYE
+	public static final Handler SHL = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			int[] V = c.V;
+			V[0xF] = (V[i.x] & 0x80) >> 7;
+			V[i.x] = (V[i.x] << 1) & 0xFF;
+		}
+	};
+	
+	// 8XYE, VIP
+	public static final Handler SHL_VY = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			int[] V = c.V;
+			int vy = V[i.y];
+			V[i.x] = (vy << 1) & 0xFF;
+			V[0xF] = (vy & 0x80) >> 7;
+		}
+	};
+	
+	// 9XY0
+	public static final Handler SNE_VX_VY = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			if(c.V[i.x] != c.V[i.y]) {
+				c.skip();
+			}
+		}
+	};
+	
+	// ANNN
+	public static final Handler LD_I = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.I = i.nnn;
+		}
+	};
+	
+	// BNNN
+	public static final Handler JP_V0 = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.pc = i.nnn + (c.V[0] & 0xFF) - 2;
+		}
+	};
+	
+	// BXNN, CHIP-48 and SCHIP
+	public static final Handler JP_VX = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.pc = i.nnn + (c.V[i.x] & 0xFF) - 2;
+		}
+	};
+	
+	// CXNN
+	public static final Handler RND = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.V[i.x] = i.nn & c.nextRandom();
+		}
+	};
+	
+	// DXYN, N = 0 draws 16 rows, 16 pixels wide in 128x64. With both XO-CHIP planes
+	// selected the sprite for the second plane follows the one for the first.
+	public static final Handler DRW = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			draw(c, i, Quirks.SPRITES_CLIPPED);
+		}
+	};
+	
+	// DXYN, VIP, CHIP-48 and SCHIP. The position wraps, the rest of the sprite is clipped.
+	public static final Handler DRW_START_WRAPS = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			draw(c, i, Quirks.SPRITES_START_WRAPS);
+		}
+	};
+	
+	// DXYN, XO-CHIP, wrapping around the edges of the screen
+	public static final Handler DRW_WRAP = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			draw(c, i, Quirks.SPRITES_WRAP);
+		}
+	};
+	
+	// sprites is one of the Quirks.SPRITES_ constants
+	private static void draw(Chip8 c, Instruction i, int sprites) {
+		int[] V = c.V;
+		Memory memory = c.memory;
+		Display gfx = c.gfx;
+		int mask = c.memoryMask;
+		int x = V[i.x];
+		int y = V[i.y];
+		if(sprites == Quirks.SPRITES_START_WRAPS) {
+			x %= gfx.width;
+			y %= gfx.height;
+		}
+		boolean wrap = sprites == Quirks.SPRITES_WRAP;
+		boolean wide = i.n == 0 && gfx.isHires();
+		int height = (i.n == 0) ? 16 : i.n;
+		int size = wide ? 32 : height;
+		int address = c.I;
+		int collision = 0;
+		if(c.planes == 1 && !wide && !wrap) {
+			// Plain CHIP-8
+			c.checkRange(address, height);
+			for(int row = 0; row < height; row++) {
+				if(gfx.drawRow(x, y + row, memory.read((address + row) & mask), 8)) {
+					collision = 1;
+				}
+			}
+			V[0xF] = collision;
+			c.drawFlag = true;
+			return;
+		}
+		for(int plane = 0; plane < Display.PLANES; plane++) {
+			if((c.planes & (1 << plane)) == 0) {
+				continue;
+			}
+			c.checkRange(address, size);
+			for(int row = 0; row < height; row++) {
+				int pattern;
+				int bitWidth;
+				if(wide) {
+					pattern = memory.read((address + row * 2) & mask) << 8 | memory.read((address + row * 2 + 1) & mask);
+					bitWidth = 16;
+				} else {
+					pattern = memory.read((address + row) & mask);
+					bitWidth = 8;
+				}
+				boolean erased;
+				if(wrap) {
+					erased = gfx.drawRowWrapped(plane, x, y + row, pattern, bitWidth);
+				} else {
+					erased = gfx.drawRow(plane, x, y + row, pattern, bitWidth);
+				}
+				if(erased) {
+					collision = 1;
+				}
+			}
+			address += size;
+		}
+		V[0xF] = collision;
+		c.drawFlag = true;
+	}
+	
+	// EX9E
+	public static final Handler SKP = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			if(c.keypad.isDown(c.V[i.x] & 0xF)) {
+				c.skip();
+			}
+		}
+	};
+	
+	// EXA1
+	public static final Handler SKNP = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			if(!c.keypad.isDown(c.V[i.x] & 0xF)) {
+				c.skip();
+			}
+		}
+	};
+	
+	// F000 NNNN, XO-CHIP. The address is in the next 2 bytes, which are skipped.
+	public static final Handler LD_I_LONG = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.I = c.read(c.pc + 2) << 8 | c.read(c.pc + 3);
+			c.pc += 2;
+		}
+	};
+	
+	// FN01, XO-CHIP, N is the mask of planes
+	public static final Handler PLANE = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.planes = i.x & Display.ALL_PLANES;
+		}
+	};
+	
+	// F002, XO-CHIP
+	public static final Handler LD_AUDIO = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			for(int b = 0; b < 16; b++) {
+				c.audioPattern[b] = c.read(c.I + b);
+			}
+		}
+	};
+	
+	// FX07
+	public static final Handler LD_VX_DT = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.V[i.x] = c.delayTimer;
+		}
+	};
+	
+	// FX0A
+	public static final Handler LD_VX_K = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			int keys = c.keypad.get();
+			if(keys == 0) {
+				// Stay on this instruction, the scheduler stops running the CPU until a key
+				// goes down
+				c.waitingForKey = true;
+				c.pc -= 2;
+			} else {
+				c.waitingForKey = false;
+				c.V[i.x] = Integer.numberOfTrailingZeros(keys);
+			}
+		}
+	};
+	
+	// FX15
+	public static final Handler LD_DT_VX = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.delayTimer = c.V[i.x];
+		}
+	};
+	
+	// FX18
+	public static final Handler LD_ST_VX = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.soundTimer = c.V[i.x];
+		}
+	};
+	
+	// FX1E
+	public static final Handler ADD_I_VX = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.I = (c.I + c.V[i.x]) & 0xFFFF;
+		}
+	};
+	
+	// FX29
+	public static final Handler LD_F_VX = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.I = c.V[i.x] * 5;
+		}
+	};
+	
+	// FX30, SCHIP 8x10 digits
+	public static final Handler LD_HF_VX = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.I = Chip8.BIG_FONT_ADDRESS + (c.V[i.x] & 0xF) * 10;
+		}
+	};
+	
+	// FX3A, XO-CHIP
+	public static final Handler LD_PITCH_VX = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			c.pitch = c.V[i.x];
+		}
+	};
+	
+	// FX33
+	public static final Handler LD_B_VX = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			int value = c.V[i.x];
+			c.write(value / 100, c.I);
+			c.write((value % 100) / 10, c.I + 1);
+			c.write((value % 100) % 10, c.I + 2);
+		}
+	};
+	
+	// FX55
+	public static final Handler LD_I_VX = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			for(int r = 0; r <= i.x; r++) {
+				c.write(c.V[r], c.I + r);
+			}
+		}
+	};
+	
+	// FX55, CHIP-48. I ends up at the last register stored.
+	public static final Handler LD_I_VX_ADD_X = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			LD_I_VX.execute(c, i);
+			c.I = (c.I + i.x) & 0xFFFF;
+		}
+	};
+	
+	// FX55, VIP and XO-CHIP. I ends up past the last register stored.
+	public static final Handler LD_I_VX_ADD_X_1 = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			LD_I_VX.execute(c, i);
+			c.I = (c.I + i.x + 1) & 0xFFFF;
+		}
+	};
+	
+	// FX65
+	public static final Handler LD_VX_I = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			for(int r = 0; r <= i.x; r++) {
+				c.V[r] = c.read(c.I + r);
+			}
+		}
+	};
+	
+	// FX65, CHIP-48
+	public static final Handler LD_VX_I_ADD_X = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			LD_VX_I.execute(c, i);
+			c.I = (c.I + i.x) & 0xFFFF;
+		}
+	};
+	
+	// FX65, VIP and XO-CHIP
+	public static final Handler LD_VX_I_ADD_X_1 = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			LD_VX_I.execute(c, i);
+			c.I = (c.I + i.x + 1) & 0xFFFF;
+		}
+	};
+	
+	// FX75, SCHIP
+	public static final Handler LD_R_VX = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			System.arraycopy(c.V, 0, c.flags, 0, i.x + 1);
+		}
+	};
+	
+	// FX85, SCHIP
+	public static final Handler LD_VX_R = new Handler() {
+		@Override
+		public void execute(Chip8 c, Instruction i) {
+			System.arraycopy(c.flags, 0, c.V, 0, i.x + 1);
+		}
+	};
+}
@@ -0,0 +1,247 @@
+package com.markaldrich.chip8;
+
+import java.util.Arrays;
+
+/**
+ * Packed 1 bit per pixel framebuffer.
+ *
+ * Every row is stored in whole longs with the leftmost pixel in the most significant bit,
+ * so the 64x32 mode uses one long per row and the 128x64 mode uses two. Sprites are drawn
+ * a full row at a time: one shift to line the sprite up, one AND to test for collisions and
+ * one XOR to draw it. Scaling to the window is left to the renderer.
+ *
+ * XO-CHIP has a second bit plane, stored the same way in a second array. Drawing,
+ * clearing and scrolling only touch the planes that are selected, given as a mask with
+ * bit 0 for the first plane and bit 1 for the second.
+ */
+public class Display {
+	
+	public static final int LORES_WIDTH = 64;
+	public static final int LORES_HEIGHT = 32;
+	public static final int HIRES_WIDTH = 128;
+	public static final int HIRES_HEIGHT = 64;
+	
+	public static final int PLANES = 2;
+	
+	// Mask for every plane
+	public static final int ALL_PLANES = (1 << PLANES) - 1;
+	
+	public int width;
+	public int height;
+	
+	// Longs per row
+	public int words;
+	
+	// Pixels of every plane, row after row, words longs per row
+	public final long[][] planes = new long[PLANES][HIRES_HEIGHT * HIRES_WIDTH / 64];
+	
+	// The first plane, the only one outside of XO-CHIP
+	public final long[] rows = planes[0];
+	
+	public Display() {
+		setResolution(false);
+	}
+	
+	public void setResolution(boolean hires) {
+		width = hires ? HIRES_WIDTH : LORES_WIDTH;
+		height = hires ? HIRES_HEIGHT : LORES_HEIGHT;
+		words = width / 64;
+		clear();
+	}
+	
+	public boolean isHires() {
+		return width == HIRES_WIDTH;
+	}
+	
+	public void clear() {
+		clear(ALL_PLANES);
+	}
+	
+	public void clear(int mask) {
+		for(int plane = 0; plane < PLANES; plane++) {
+			if((mask & (1 << plane)) != 0) {
+				Arrays.fill(planes[plane], 0);
+			}
+		}
+	}
+	
+	public void copyFrom(Display other) {
+		width = other.width;
+		height = other.height;
+		words = other.words;
+		for(int plane = 0; plane < PLANES; plane++) {
+			System.arraycopy(other.planes[plane], 0, planes[plane], 0, height * words);
+		}
+	}
+	
+	// Moves the planes in mask down n rows, blank rows come in at the top
+	public void scrollDown(int mask, int n) {
+		int total = height * words;
+		int shift = Math.min(n, height) * words;
+		for(int plane = 0; plane < PLANES; plane++) {
+			if((mask & (1 << plane)) != 0) {
+				long[] rows = planes[plane];
+				System.arraycopy(rows, 0, rows, shift, total - shift);
+				Arrays.fill(rows, 0, shift, 0);
+			}
+		}
+	}
+	
+	// Moves the planes in mask up n rows, blank rows come in at the bottom
+	public void scrollUp(int mask, int n) {
+		int total = height * words;
+		int shift = Math.min(n, height) * words;
+		for(int plane = 0; plane < PLANES; plane++) {
+			if((mask & (1 << plane)) != 0) {
+				long[] rows = planes[plane];
+				System.arraycopy(rows, shift, rows, 0, total - shift);
+				Arrays.fill(rows, total - shift, total, 0);
+			}
+		}
+	}
+	
+	// Moves the planes in mask right n < 64 columns, one shift per long instead of per pixel
+	public void scrollRight(int mask, int n) {
+		if(n == 0) {
+			return;
+		}
+		int total = height * words;
+		for(int plane = 0; plane < PLANES; plane++) {
+			if((mask & (1 << plane)) == 0) {
+				continue;
+			}
+			long[] rows = planes[plane];
+			if(words == 1) {
+				for(int i = 0; i < total; i++) {
+					rows[i] >>>= n;
+				}
+				continue;
+			}
+			// Two longs per row, what falls out of the left one carries into the right one
+			for(int i = 0; i < total; i += 2) {
+				long left = rows[i];
+				long right = rows[i + 1];
+				if((left | right) != 0) {
+					rows[i] = left >>> n;
+					rows[i + 1] = (right >>> n) | (left << (64 - n));
+				}
+			}
+		}
+	}
+	
+	// Moves the planes in mask left n < 64 columns
+	public void scrollLeft(int mask, int n) {
+		if(n == 0) {
+			return;
+		}
+		int total = height * words;
+		for(int plane = 0; plane < PLANES; plane++) {
+			if((mask & (1 << plane)) == 0) {
+				continue;
+			}
+			long[] rows = planes[plane];
+			if(words == 1) {
+				for(int i = 0; i < total; i++) {
+					rows[i] <<= n;
+				}
+				continue;
+			}
+			for(int i = 0; i < total; i += 2) {
+				long left = rows[i];
+				long right = rows[i + 1];
+				if((left | right) != 0) {
+					rows[i] = (left << n) | (right >>> (64 - n));
+					rows[i + 1] = right << n;
+				}
+			}
+		}
+	}
+	
+	public boolean get(int x, int y) {
+		return get(0, x, y);
+	}
+	
+	public boolean get(int plane, int x, int y) {
+		return (planes[plane][y * words + (x >>> 6)] << (x & 63)) < 0;
+	}
+	
+	public boolean drawRow(int x, int y, int pattern, int bitWidth) {
+		return drawRow(0, x, y, pattern, bitWidth);
+	}
+	
+	/**
+	 * XORs the lowest bitWidth bits of pattern onto row y of a plane, starting at column x.
+	 * Anything past the right or bottom edge is clipped.
+	 *
+	 * @return true if any lit pixel was turned off
+	 */
+	public boolean drawRow(int plane, int x, int y, int pattern, int bitWidth) {
+		if(y >= height || x >= width) {
+			return false;
+		}
+		long[] rows = planes[plane];
+		long bits = (long) pattern << (64 - bitWidth);
+		int index = y * words + (x >>> 6);
+		int shift = x & 63;
+		
+		long first = bits >>> shift;
+		long collision = rows[index] & first;
+		rows[index] ^= first;
+		
+		// Whatever got shifted out of the first long goes into the next one, if there is one
+		if(shift != 0 && (x >>> 6) + 1 < words) {
+			long second = bits << (64 - shift);
+			collision |= rows[index + 1] & second;
+			rows[index + 1] ^= second;
+		}
+		return collision != 0;
+	}
+	
+	/**
+	 * Like {@link #drawRow(int, int, int, int, int)}, but x and y wrap around the edges of
+	 * the screen and whatever goes past the right edge comes back in on the left.
+	 */
+	public boolean drawRowWrapped(int plane, int x, int y, int pattern, int bitWidth) {
+		x %= width;
+		y %= height;
+		boolean erased = drawRow(plane, x, y, pattern, bitWidth);
+		int overflow = x + bitWidth - width;
+		if(overflow > 0) {
+			erased |= drawRow(plane, 0, y, pattern & ((1 << overflow) - 1), overflow);
+		}
+		return erased;
+	}
+	
+	// 64 bit FNV-1a over the packed rows, cheap enough to do every frame
+	public long hash() {
+		long hash = 0xcbf29ce484222325L ^ width;
+		for(int i = 0; i < height * words; i++) {
+			hash ^= rows[i];
+			hash *= 0x100000001b3L;
+		}
+		// Only the lit words of the second plane count, so it changes nothing until used
+		long[] second = planes[1];
+		for(int i = 0; i < height * words; i++) {
+			if(second[i] != 0) {
+				hash ^= i;
+				hash *= 0x100000001b3L;
+				hash ^= second[i];
+				hash *= 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder((width + 1) * height);
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				// '+' for the second plane alone, '@' for both
+				builder.append(".#+@".charAt((get(0, x, y) ? 1 : 0) | (get(1, x, y) ? 2 : 0)));
+			}
+			builder.append('\n');
+		}
+		return builder.toString();
+	}
+}
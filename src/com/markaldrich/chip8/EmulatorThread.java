@@ -0,0 +1,168 @@
+package com.markaldrich.chip8;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the CPU on its own thread so that it never waits for the UI, and the UI never waits
+ * for it. Every time the timers tick the display is published to a {@link FrameExchange},
+ * where the renderer can pick up the newest finished frame whenever it likes.
+ *
+ * Between frames the thread is parked, it only wakes up early when a key goes down.
+ *
+ * With a {@link RewindBuffer} set every frame is recorded, and while rewinding is switched
+ * on the thread steps back one recorded frame per frame instead of running the CPU.
+ *
+ * In turbo mode the CPU runs as fast as it can instead of at its speed. The timers still
+ * tick every speed / 60 instructions, so to the game it looks like normal play. Only every
+ * Nth frame is handed to the renderer, or with a frame skip of 0 the newest frame once per
+ * host frame, so frames nobody would see are never copied or drawn.
+ *
+ * Whether the buzzer is on is taken at the end of every frame as well, for the UI to poll
+ * with {@link #isSoundOn()}.
+ */
+public class EmulatorThread extends Thread {
+	
+	private static final long FRAME_NANOS = 1000000000L / Scheduler.TIMER_HZ;
+	
+	// Frames run between two looks at the clock in turbo mode
+	private static final int TURBO_BATCH = 16;
+	
+	private final Chip8 chip8;
+	private final Scheduler scheduler;
+	private final FrameExchange frames;
+	
+	private volatile boolean running = true;
+	
+	private volatile RewindBuffer rewindBuffer;
+	private volatile boolean rewinding;
+	
+	private volatile boolean turbo;
+	private volatile int frameSkip;
+	
+	// Frames since the last one that was published in turbo mode
+	private int skipped;
+	
+	private volatile boolean soundOn;
+	
+	public EmulatorThread(Chip8 chip8, Scheduler scheduler, FrameExchange frames) {
+		super("Chip8 emulator");
+		this.chip8 = chip8;
+		this.scheduler = scheduler;
+		this.frames = frames;
+		setDaemon(true);
+		scheduler.setFrameListener(new Runnable() {
+			@Override
+			public void run() {
+				if(!turbo) {
+					frames.publish(chip8.gfx);
+				} else if(frameSkip > 0 && ++skipped >= frameSkip) {
+					frames.publish(chip8.gfx);
+					skipped = 0;
+				}
+				soundOn = chip8.isSoundOn();
+				if(chip8.metrics != null) {
+					chip8.metrics.frame();
+				}
+				// Recording thousands of frames a second would fill the rewind buffer with
+				// a fraction of a second, so turbo mode is not recorded
+				RewindBuffer rewindBuffer = EmulatorThread.this.rewindBuffer;
+				if(rewindBuffer != null && !turbo) {
+					rewindBuffer.record(chip8);
+				}
+			}
+		});
+	}
+	
+	@Override
+	public void run() {
+		chip8.keypad.setWaiter(this);
+		scheduler.resync();
+		long nextFrame = System.nanoTime();
+		while(running) {
+			try {
+				RewindBuffer rewindBuffer = this.rewindBuffer;
+				if(rewinding && rewindBuffer != null) {
+					// Stays on the oldest frame once there is nothing left
+					rewindBuffer.rewind(chip8);
+					frames.publish(chip8.gfx);
+					scheduler.resync();
+				} else if(turbo) {
+					// Run flat out for one host frame
+					long end = System.nanoTime() + FRAME_NANOS;
+					do {
+						scheduler.runFrames(TURBO_BATCH);
+					} while(turbo && System.nanoTime() - end < 0);
+					if(frameSkip == 0) {
+						frames.publish(chip8.gfx);
+					}
+					scheduler.resync();
+					nextFrame = System.nanoTime();
+					continue;
+				} else {
+					scheduler.update();
+				}
+			} catch(RuntimeException e) {
+				System.err.println("Crashed at pc=0x" + Integer.toHexString(chip8.pc) + " opcode=0x"
+						+ Integer.toHexString(chip8.opcode) + " after " + chip8.cycles + " cycles");
+				e.printStackTrace();
+				System.exit(1);
+			}
+			
+			// Sleep until the next frame. A key press cuts this short, so a game waiting in
+			// FX0A picks the key up straight away instead of on the next frame.
+			long now = System.nanoTime();
+			if(now - nextFrame > FRAME_NANOS) {
+				// Fell behind, the scheduler already limits how much is caught up on
+				nextFrame = now;
+			}
+			while(nextFrame - now <= 0) {
+				nextFrame += FRAME_NANOS;
+			}
+			LockSupport.parkNanos(this, nextFrame - now);
+		}
+	}
+	
+	// As of the last frame
+	public boolean isSoundOn() {
+		return soundOn;
+	}
+	
+	public boolean isTurbo() {
+		return turbo;
+	}
+	
+	public void setTurbo(boolean turbo) {
+		this.turbo = turbo;
+		LockSupport.unpark(this);
+	}
+	
+	/**
+	 * Sets how many frames make up one published frame in turbo mode, 0 publishes the
+	 * newest frame once per host frame instead.
+	 */
+	public void setFrameSkip(int frameSkip) {
+		if(frameSkip < 0) {
+			throw new IllegalArgumentException("Frame skip can not be negative, got " + frameSkip);
+		}
+		this.frameSkip = frameSkip;
+	}
+	
+	public void setRewindBuffer(RewindBuffer rewindBuffer) {
+		this.rewindBuffer = rewindBuffer;
+	}
+	
+	public void setRewinding(boolean rewinding) {
+		this.rewinding = rewinding;
+		LockSupport.unpark(this);
+	}
+	
+	public void shutdown() {
+		running = false;
+		LockSupport.unpark(this);
+		try {
+			join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.markaldrich.chip8;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free triple buffer for handing finished frames from the emulation thread to the
+ * render thread.
+ *
+ * The producer always has a back buffer of its own to fill and the consumer always has a
+ * front buffer of its own to draw. Publishing and picking up a frame are a single atomic
+ * swap with the shared middle buffer, so neither side ever waits for the other and the
+ * consumer always gets the newest complete frame.
+ */
+public class FrameExchange {
+	
+	// Set in the shared state when the middle buffer holds a frame the consumer has not seen
+	private static final int FRESH = 4;
+	private static final int INDEX = 3;
+	
+	private final Display[] frames = { new Display(), new Display(), new Display() };
+	
+	// Index of the middle buffer, plus the FRESH bit
+	private final AtomicInteger middle = new AtomicInteger(1);
+	
+	// Only touched by the producer
+	private int back = 0;
+	
+	// Only touched by the consumer
+	private int front = 2;
+	
+	// Frames that were replaced before the consumer picked them up, only written by the producer
+	private volatile long dropped;
+	
+	/**
+	 * Copies the display into the back buffer and makes it the newest frame. Producer only.
+	 */
+	public void publish(Display display) {
+		frames[back].copyFrom(display);
+		int old = middle.getAndSet(back | FRESH);
+		if((old & FRESH) != 0) {
+			dropped++;
+		}
+		back = old & INDEX;
+	}
+	
+	public long getDroppedFrames() {
+		return dropped;
+	}
+	
+	/**
+	 * Returns the newest published frame. The frame stays valid until the next call. Consumer
+	 * only.
+	 */
+	public Display latest() {
+		if((middle.get() & FRESH) != 0) {
+			front = middle.getAndSet(front) & INDEX;
+		}
+		return frames[front];
+	}
+}
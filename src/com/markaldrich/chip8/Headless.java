@@ -0,0 +1,290 @@
+package com.markaldrich.chip8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Runs a ROM without any window. The CPU is stepped directly in a tight loop, so the only
+ * limit on speed is the interpreter itself.
+ *
+ * Usage: Headless &lt;rom&gt; [-cycles n | -frames n] [-speed n] [-seed n] [-output none|stats|screen|hash] [-trace file] [-load file] [-save file] [-replay file] [-metrics] [-jit] [-noidle] [-profile name] [-prepare] [-strict]
+ *
+ * The speed only sets how many instructions make up one 60hz frame, the run itself is
+ * never throttled. CXNN is seeded with 0 unless -seed says otherwise, so every run of a ROM
+ * is the same. With -trace the last instructions are written to the given file when the
+ * run ends or crashes. -load starts from a {@link SaveState} instead of a fresh machine,
+ * -save writes one when the run is over. -replay plays back a {@link Movie} with its own
+ * seed, speed and quirks, by default until the point where the recording stopped.
+ * -metrics adds the instructions per opcode family to the stats. -jit compiles hot code to
+ * JVM bytecode. -noidle runs idle loops instead of skipping them. -profile picks the
+ * {@link Quirks}, e.g. xochip for XO-CHIP ROMs, which also gives the machine 64 KB of
+ * memory. -prepare runs the {@link Analyzer} on the ROM first and decodes and compiles all
+ * of its code before the first cycle. -strict makes any access outside of memory end the
+ * run with a MemoryAccessException instead of wrapping.
+ *
+ * The speed in the stats is in emulated cycles, which includes idle loops that were
+ * skipped and time spent waiting for a key. With -metrics the instructions that really ran
+ * are shown as well.
+ */
+public class Headless {
+	
+	public static final String USAGE = "Usage: Headless <rom> [-cycles n | -frames n] [-speed n] [-seed n] [-output none|stats|screen|hash] [-trace file] [-load file] [-save file] [-replay file] [-metrics] [-jit] [-noidle] [-profile name] [-prepare] [-strict]";
+	
+	public static void main(String[] args) {
+		if(args.length < 1) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		
+		String romPath = args[0];
+		long cycles = -1;
+		long frames = 60;
+		int speed = Scheduler.DEFAULT_SPEED;
+		long seed = 0;
+		String output = "stats";
+		String tracePath = null;
+		String loadPath = null;
+		String savePath = null;
+		String replayPath = null;
+		boolean lengthGiven = false;
+		boolean jit = false;
+		boolean metrics = false;
+		boolean skipIdle = true;
+		boolean prepare = false;
+		boolean strict = false;
+		Quirks quirks = Quirks.DEFAULT;
+		for(int i = 1; i < args.length; i++) {
+			if(args[i].equals("-jit")) {
+				jit = true;
+				continue;
+			}
+			if(args[i].equals("-strict")) {
+				strict = true;
+				continue;
+			}
+			if(args[i].equals("-prepare")) {
+				prepare = true;
+				continue;
+			}
+			if(args[i].equals("-noidle")) {
+				skipIdle = false;
+				continue;
+			}
+			if(args[i].equals("-metrics")) {
+				metrics = true;
+				continue;
+			}
+			if(i + 1 >= args.length) {
+				System.err.println(USAGE);
+				System.exit(2);
+			}
+			String value = args[++i];
+			switch(args[i - 1]) {
+				case "-cycles": {
+					cycles = Long.parseLong(value);
+					lengthGiven = true;
+					break;
+				}
+				case "-frames": {
+					frames = Long.parseLong(value);
+					cycles = -1;
+					lengthGiven = true;
+					break;
+				}
+				case "-speed": {
+					speed = Integer.parseInt(value);
+					break;
+				}
+				case "-seed": {
+					seed = Long.parseLong(value);
+					break;
+				}
+				case "-output": {
+					if(!value.equals("none") && !value.equals("stats") && !value.equals("screen") && !value.equals("hash")) {
+						System.err.println(USAGE);
+						System.exit(2);
+					}
+					output = value;
+					break;
+				}
+				case "-trace": {
+					tracePath = value;
+					break;
+				}
+				case "-load": {
+					loadPath = value;
+					break;
+				}
+				case "-save": {
+					savePath = value;
+					break;
+				}
+				case "-replay": {
+					replayPath = value;
+					break;
+				}
+				case "-profile": {
+					try {
+						quirks = Quirks.forName(value);
+					} catch(IllegalArgumentException e) {
+						System.err.println(e.getMessage());
+						System.exit(2);
+					}
+					break;
+				}
+				default: {
+					System.err.println(USAGE);
+					System.exit(2);
+				}
+			}
+		}
+		
+		byte[] data = null;
+		try {
+			data = Files.readAllBytes(Paths.get(romPath));
+		} catch(IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		
+		// A movie brings its own seed, speed and quirks
+		Movie.Player player = null;
+		if(replayPath != null) {
+			try {
+				player = Movie.Player.read(Paths.get(replayPath));
+			} catch(IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+			if(player.romCrc != Movie.crc(data)) {
+				System.err.println("The movie was recorded with a different ROM");
+				System.exit(1);
+			}
+			seed = player.seed;
+			speed = player.speed;
+			quirks = player.quirks;
+			if(!lengthGiven) {
+				cycles = player.getLength();
+			}
+		}
+		
+		Chip8 chip8 = new Chip8();
+		chip8.setSeed(seed);
+		chip8.setQuirks(quirks);
+		chip8.strict = strict;
+		chip8.reset();
+		chip8.loadRom(data);
+		Scheduler scheduler = new Scheduler(chip8, speed);
+		scheduler.setInput(player);
+		scheduler.setSkipIdle(skipIdle);
+		
+		if(tracePath != null) {
+			chip8.trace = new Trace();
+		}
+		if(jit) {
+			chip8.jit = new BlockCompiler();
+		}
+		if(metrics) {
+			chip8.metrics = new Metrics();
+		}
+		SaveState state = new SaveState();
+		if(loadPath != null) {
+			try {
+				state.read(Paths.get(loadPath));
+			} catch(IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+			state.load(chip8);
+		}
+		
+		// A save state can start at any cycle
+		long startCycles = chip8.cycles;
+		long start = System.nanoTime();
+		Analyzer analyzer = null;
+		if(prepare) {
+			// Counts towards the time, it is what a cold start costs
+			analyzer = Analyzer.analyze(chip8.memory, data.length, chip8.quirks);
+			analyzer.prepare(chip8);
+		}
+		
+		try {
+			if(cycles >= 0) {
+				scheduler.run(cycles);
+			} else {
+				scheduler.runFrames(frames);
+			}
+		} catch(RuntimeException e) {
+			System.err.println("Crashed at pc=0x" + Integer.toHexString(chip8.pc) + " opcode=0x"
+					+ Integer.toHexString(chip8.opcode) + " after " + chip8.cycles + " cycles");
+			e.printStackTrace();
+			dumpTrace(chip8, tracePath);
+			System.exit(1);
+		}
+		long elapsed = System.nanoTime() - start;
+		dumpTrace(chip8, tracePath);
+		if(savePath != null) {
+			state.save(chip8);
+			try {
+				state.write(Paths.get(savePath));
+			} catch(IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+		
+		switch(output) {
+			case "none": {
+				break;
+			}
+			case "screen": {
+				System.out.print(chip8.gfx);
+				break;
+			}
+			case "hash": {
+				System.out.println(Long.toHexString(chip8.gfx.hash()));
+				break;
+			}
+			case "stats": {
+				System.out.println("cycles: " + chip8.cycles);
+				if(chip8.halted) {
+					System.out.println("exited at pc=0x" + Integer.toHexString(chip8.pc));
+				}
+				System.out.println("time: " + (elapsed / 1000000) + " ms");
+				// Emulated time, including cycles spent in skipped idle loops and waiting on FX0A
+				double seconds = Math.max(elapsed / 1e9, 1e-9);
+				System.out.println("speed: " + (long) ((chip8.cycles - startCycles) / seconds) + " emulated cycles/s");
+				if(chip8.metrics != null) {
+					// Only what really ran
+					System.out.println("executed: " + (long) (chip8.metrics.getInstructions() / seconds) + " instructions/s");
+				}
+				if(chip8.jit != null) {
+					System.out.println("compiled blocks: " + chip8.jit.getCompiledCount());
+				}
+				if(analyzer != null) {
+					System.out.println("analyzed blocks: " + analyzer.blocks.size());
+				}
+				System.out.println("screen: " + Long.toHexString(chip8.gfx.hash()));
+				if(chip8.metrics != null) {
+					long[] counts = chip8.metrics.opcodeCounts;
+					for(int i = 0; i < 16; i++) {
+						System.out.println(Metrics.FAMILIES[i] + ": " + counts[i]);
+					}
+					System.out.println("idle: " + chip8.metrics.idleInstructions);
+				}
+			}
+		}
+	}
+	
+	private static void dumpTrace(Chip8 chip8, String tracePath) {
+		if(chip8.trace == null) {
+			return;
+		}
+		try {
+			chip8.trace.dump(Paths.get(tracePath));
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
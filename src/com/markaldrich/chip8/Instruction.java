@@ -0,0 +1,40 @@
+package com.markaldrich.chip8;
+
+/**
+ * A decoded opcode: the handler that executes it plus all of its operands, pulled out of the
+ * opcode once so that executing it again is just a call.
+ *
+ * Instructions are immutable and only depend on the opcode, so the same instance is shared
+ * by every address and every machine that holds that opcode.
+ */
+public final class Instruction {
+	
+	public static abstract class Handler {
+		public abstract void execute(Chip8 chip8, Instruction instruction);
+	}
+	
+	public final Handler handler;
+	
+	public final int opcode;
+	
+	// 0X00
+	public final int x;
+	// 00Y0
+	public final int y;
+	// 000N
+	public final int n;
+	// 00NN
+	public final int nn;
+	// 0NNN
+	public final int nnn;
+	
+	public Instruction(Handler handler, int opcode) {
+		this.handler = handler;
+		this.opcode = opcode;
+		x = (opcode & 0x0F00) >> 8;
+		y = (opcode & 0x00F0) >> 4;
+		n = opcode & 0x000F;
+		nn = opcode & 0x00FF;
+		nnn = opcode & 0x0FFF;
+	}
+}
@@ -0,0 +1,80 @@
+package com.markaldrich.chip8;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The 16 key hex keypad, one bit per key in a single atomic int.
+ *
+ * Key events can come in from any thread and are applied with a compare and set, the CPU
+ * reads the whole keypad with one volatile read. Every change is stamped with the cycle
+ * count of the machine at the moment it arrived.
+ */
+public class Keypad {
+	
+	private final AtomicInteger state = new AtomicInteger();
+	
+	private volatile long lastChangeCycle;
+	
+	// Unparked whenever a key goes down
+	private volatile Thread waiter;
+	
+	public boolean isDown(int key) {
+		return (state.get() & (1 << key)) != 0;
+	}
+	
+	// Bit n is set while key n is down
+	public int get() {
+		return state.get();
+	}
+	
+	public long getLastChangeCycle() {
+		return lastChangeCycle;
+	}
+	
+	public void setWaiter(Thread waiter) {
+		this.waiter = waiter;
+	}
+	
+	public void press(int key, long cycle) {
+		int bit = 1 << key;
+		int old;
+		do {
+			old = state.get();
+		} while(!state.compareAndSet(old, old | bit));
+		if((old & bit) == 0) {
+			lastChangeCycle = cycle;
+			wakeWaiter();
+		}
+	}
+	
+	public void release(int key, long cycle) {
+		int bit = 1 << key;
+		int old;
+		do {
+			old = state.get();
+		} while(!state.compareAndSet(old, old & ~bit));
+		if((old & bit) != 0) {
+			lastChangeCycle = cycle;
+		}
+	}
+	
+	public void set(int keys, long cycle) {
+		if(state.getAndSet(keys & 0xFFFF) != (keys & 0xFFFF)) {
+			lastChangeCycle = cycle;
+			wakeWaiter();
+		}
+	}
+	
+	private void wakeWaiter() {
+		Thread waiter = this.waiter;
+		if(waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+	}
+	
+	public void clear() {
+		state.set(0);
+		lastChangeCycle = 0;
+	}
+}
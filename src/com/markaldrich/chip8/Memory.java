@@ -0,0 +1,139 @@
+package com.markaldrich.chip8;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Machine memory, split into pages of 256 bytes that are copied on write.
+ *
+ * A page starts out shared: the zero page for memory nobody wrote to yet, or a page of
+ * another memory that was mapped in, e.g. the font or a ROM. The first write to a shared
+ * page gives this memory its own copy, every page after that is written in place. So any
+ * number of machines can run the same ROM while only paying for the pages they change.
+ *
+ * Addresses have to be inside of memory already, the Chip8 masks them.
+ */
+public class Memory {
+	
+	public static final int PAGE_BITS = 8;
+	public static final int PAGE_SIZE = 1 << PAGE_BITS;
+	
+	private static final int OFFSET = PAGE_SIZE - 1;
+	
+	// Shared by every memory for pages that were never written
+	private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+	
+	// Size in bytes, a power of 2
+	public final int size;
+	
+	// size - 1
+	public final int mask;
+	
+	private final byte[][] pages;
+	
+	// Pages that belong to this memory alone and can be written in place
+	private final boolean[] owned;
+	
+	public Memory(int size) {
+		if(Integer.bitCount(size) != 1 || size < PAGE_SIZE) {
+			throw new IllegalArgumentException("Memory size must be a power of 2 of at least " + PAGE_SIZE + ", got " + size);
+		}
+		this.size = size;
+		mask = size - 1;
+		pages = new byte[size >>> PAGE_BITS][];
+		owned = new boolean[pages.length];
+		clear();
+	}
+	
+	public int read(int address) {
+		return pages[address >>> PAGE_BITS][address & OFFSET] & 0xFF;
+	}
+	
+	public void write(int address, int value) {
+		int page = address >>> PAGE_BITS;
+		if(!owned[page]) {
+			pages[page] = pages[page].clone();
+			owned[page] = true;
+		}
+		pages[page][address & OFFSET] = (byte) value;
+	}
+	
+	// Sets every byte to 0
+	public void clear() {
+		for(int i = 0; i < pages.length; i++) {
+			pages[i] = ZERO_PAGE;
+			owned[i] = false;
+		}
+	}
+	
+	/**
+	 * Stops writing to any page in place, so they can be shared. Writes after this copy the
+	 * page first, just like they do in the memories that share it.
+	 */
+	public void freeze() {
+		Arrays.fill(owned, false);
+	}
+	
+	/**
+	 * Makes this memory hold the same bytes as image by sharing its pages. The image has to
+	 * be frozen already and is only read, so any number of threads can map it at once.
+	 */
+	public void map(Memory image) {
+		if(image.size != size) {
+			throw new IllegalArgumentException("Can not map " + image.size + " bytes onto " + size);
+		}
+		if(image.getOwnedPages() != 0) {
+			throw new IllegalArgumentException("Can only map a frozen memory");
+		}
+		for(int i = 0; i < pages.length; i++) {
+			pages[i] = image.pages[i];
+			owned[i] = false;
+		}
+	}
+	
+	// Number of pages this memory has its own copy of
+	public int getOwnedPages() {
+		int count = 0;
+		for(boolean page : owned) {
+			if(page) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	// Puts all of memory into the buffer
+	public void save(ByteBuffer buffer) {
+		for(byte[] page : pages) {
+			buffer.put(page);
+		}
+	}
+	
+	/**
+	 * Fills memory from the buffer. Pages that come out the same as the shared page they
+	 * are on stay shared.
+	 */
+	public void load(ByteBuffer buffer) {
+		for(int i = 0; i < pages.length; i++) {
+			byte[] page = pages[i];
+			if(!owned[i]) {
+				int position = buffer.position();
+				boolean same = true;
+				for(int j = 0; j < PAGE_SIZE; j++) {
+					if(buffer.get(position + j) != page[j]) {
+						same = false;
+						break;
+					}
+				}
+				if(same) {
+					buffer.position(position + PAGE_SIZE);
+					continue;
+				}
+				page = new byte[PAGE_SIZE];
+				pages[i] = page;
+				owned[i] = true;
+			}
+			buffer.get(page);
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package com.markaldrich.chip8;
+
+/**
+ * Thrown when a program reads or writes outside of the Chip8's memory.
+ */
+public class MemoryAccessException extends RuntimeException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public final int address;
+	
+	public MemoryAccessException(String message, int address) {
+		super(message);
+		this.address = address;
+	}
+}
@@ -0,0 +1,279 @@
+package com.markaldrich.chip8;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters for finding out where the time goes: instructions per opcode family,
+ * instructions per second, how long frames take to render, how far apart they are and
+ * how many were never shown.
+ *
+ * Metrics are off unless a Metrics is attached to {@link Chip8#metrics}, the only cost
+ * then is a null check per instruction. Each counter has a single writer, the opcode
+ * counts are only written by the thread running the machine and the frame times only by
+ * the render thread, so they are plain fields that other threads may read slightly out of
+ * date. That holds for {@link #reset()} too, it only asks both threads to clear their own
+ * counters the next time they come by.
+ */
+public class Metrics implements MetricsMXBean {
+	
+	public static final String OBJECT_NAME = "com.markaldrich.chip8:type=Metrics";
+	
+	// Opcode families by their top nibble
+	public static final String[] FAMILIES = {
+		"0NNN", "1NNN", "2NNN", "3XNN", "4XNN", "5XY0", "6XNN", "7XNN",
+		"8XYN", "9XY0", "ANNN", "BNNN", "CXNN", "DXYN", "EXNN", "FXNN"
+	};
+	
+	/**
+	 * Histogram of durations in power of 2 buckets. Bucket n holds everything from 2^(n-1)
+	 * up to 2^n nanoseconds, so percentiles are rounded up to the next power of 2.
+	 */
+	public static class Histogram {
+		
+		private final long[] buckets = new long[64];
+		private volatile long count;
+		private long total;
+		private long max;
+		
+		public void record(long nanos) {
+			if(nanos < 0) {
+				return;
+			}
+			buckets[64 - Long.numberOfLeadingZeros(nanos)]++;
+			total += nanos;
+			if(nanos > max) {
+				max = nanos;
+			}
+			count++;
+		}
+		
+		public long getCount() {
+			return count;
+		}
+		
+		public long getMax() {
+			return max;
+		}
+		
+		public long getMean() {
+			long count = this.count;
+			return (count == 0) ? 0 : total / count;
+		}
+		
+		// Upper bound of the bucket the given fraction of all durations falls into
+		public long percentile(double fraction) {
+			long count = this.count;
+			long target = (long) Math.ceil(count * fraction);
+			long seen = 0;
+			for(int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if(seen >= target && seen > 0) {
+					return (i == 0) ? 0 : Math.min(1L << i, max);
+				}
+			}
+			return max;
+		}
+		
+		public void clear() {
+			for(int i = 0; i < buckets.length; i++) {
+				buckets[i] = 0;
+			}
+			total = 0;
+			max = 0;
+			count = 0;
+		}
+	}
+	
+	// Instructions executed, by the top nibble of the opcode
+	public final long[] opcodeCounts = new long[16];
+	
+	// Instructions skipped in idle loops instead of running them
+	public long idleInstructions;
+	
+	public final Histogram renderTime = new Histogram();
+	public final Histogram frameInterval = new Histogram();
+	
+	// Where dropped frames are counted, if anywhere
+	private FrameExchange frames;
+	
+	private long lastRender;
+	
+	// Start of the current one second window for the instruction rate
+	private long windowStart = System.nanoTime();
+	private long windowInstructions;
+	private volatile long instructionsPerSecond;
+	
+	// Set by reset(), cleared by the thread that owns the counters once they are zeroed
+	private volatile boolean resetInstructions;
+	private volatile boolean resetFrames;
+	
+	// The overlay is only formatted again once a second, not for every frame drawn
+	private String overlay;
+	private long overlayTime;
+	
+	public void setFrameExchange(FrameExchange frames) {
+		this.frames = frames;
+	}
+	
+	// Adds up the instructions of a compiled block that just ran
+	public void count(Block block) {
+		int[] families = block.opcodeFamilies;
+		long[] counts = opcodeCounts;
+		for(int i = 0; i < 16; i++) {
+			counts[i] += families[i];
+		}
+		// Less the ones skips inside the block jumped over
+		for(int skipped = block.skipped; skipped != 0; skipped &= skipped - 1) {
+			counts[block.skippedFamilies[Integer.numberOfTrailingZeros(skipped)]]--;
+		}
+	}
+	
+	/**
+	 * Called by the thread running the machine once per frame, updates the instruction
+	 * rate once a second.
+	 */
+	public void frame() {
+		if(resetInstructions) {
+			for(int i = 0; i < 16; i++) {
+				opcodeCounts[i] = 0;
+			}
+			idleInstructions = 0;
+			windowInstructions = 0;
+			resetInstructions = false;
+		}
+		long now = System.nanoTime();
+		long elapsed = now - windowStart;
+		if(elapsed >= 1000000000L) {
+			long instructions = getInstructions();
+			instructionsPerSecond = (long) ((instructions - windowInstructions) * 1e9 / elapsed);
+			windowInstructions = instructions;
+			windowStart = now;
+		}
+	}
+	
+	/**
+	 * Called by the render thread with the start and end of drawing a frame.
+	 */
+	public void rendered(long start, long end) {
+		if(resetFrames) {
+			renderTime.clear();
+			frameInterval.clear();
+			lastRender = 0;
+			resetFrames = false;
+		}
+		if(lastRender != 0) {
+			frameInterval.record(start - lastRender);
+		}
+		lastRender = start;
+		renderTime.record(end - start);
+	}
+	
+	/**
+	 * Registers these metrics with the platform MBean server under {@link #OBJECT_NAME}.
+	 */
+	public void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+		} catch(JMException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public long getInstructions() {
+		long instructions = 0;
+		for(long count : opcodeCounts) {
+			instructions += count;
+		}
+		return instructions;
+	}
+	
+	@Override
+	public long getInstructionsPerSecond() {
+		return instructionsPerSecond;
+	}
+	
+	@Override
+	public long getIdleInstructions() {
+		return idleInstructions;
+	}
+	
+	@Override
+	public Map<String, Long> getOpcodeCounts() {
+		Map<String, Long> counts = new LinkedHashMap<>();
+		for(int i = 0; i < 16; i++) {
+			counts.put(FAMILIES[i], opcodeCounts[i]);
+		}
+		return counts;
+	}
+	
+	@Override
+	public long getFramesRendered() {
+		return renderTime.getCount();
+	}
+	
+	@Override
+	public long getDroppedFrames() {
+		return (frames != null) ? frames.getDroppedFrames() : 0;
+	}
+	
+	@Override
+	public double getRenderTimeMean() {
+		return renderTime.getMean() / 1e6;
+	}
+	
+	@Override
+	public double getRenderTimeP99() {
+		return renderTime.percentile(0.99) / 1e6;
+	}
+	
+	@Override
+	public double getRenderTimeMax() {
+		return renderTime.getMax() / 1e6;
+	}
+	
+	@Override
+	public double getFrameIntervalMean() {
+		return frameInterval.getMean() / 1e6;
+	}
+	
+	@Override
+	public double getFrameIntervalP99() {
+		return frameInterval.percentile(0.99) / 1e6;
+	}
+	
+	@Override
+	public double getFrameIntervalMax() {
+		return frameInterval.getMax() / 1e6;
+	}
+	
+	/**
+	 * Clears all counters. Called over JMX, so it does not touch them itself, the machine
+	 * clears the instruction counts on its next frame and the render thread the frame
+	 * times on its next render.
+	 */
+	@Override
+	public void reset() {
+		resetInstructions = true;
+		resetFrames = true;
+	}
+	
+	/**
+	 * One line summary for drawing over the game, only called by the render thread.
+	 */
+	public String getOverlay() {
+		long now = System.nanoTime();
+		if(overlay == null || now - overlayTime >= 1000000000L) {
+			overlay = String.format("%d instr/s  render %.2f ms (p99 %.2f)  frame %.2f ms (p99 %.2f)  dropped %d",
+					instructionsPerSecond, getRenderTimeMean(), getRenderTimeP99(), getFrameIntervalMean(),
+					getFrameIntervalP99(), getDroppedFrames());
+			overlayTime = now;
+		}
+		return overlay;
+	}
+}
@@ -0,0 +1,36 @@
+package com.markaldrich.chip8;
+
+import java.util.Map;
+
+/**
+ * What {@link Metrics} shows over JMX. Times are in milliseconds.
+ */
+public interface MetricsMXBean {
+	
+	long getInstructions();
+	
+	long getInstructionsPerSecond();
+	
+	long getIdleInstructions();
+	
+	// Instructions executed per opcode family, e.g. 8XYN
+	Map<String, Long> getOpcodeCounts();
+	
+	long getFramesRendered();
+	
+	long getDroppedFrames();
+	
+	double getRenderTimeMean();
+	
+	double getRenderTimeP99();
+	
+	double getRenderTimeMax();
+	
+	double getFrameIntervalMean();
+	
+	double getFrameIntervalP99();
+	
+	double getFrameIntervalMax();
+	
+	void reset();
+}
@@ -0,0 +1,219 @@
+package com.markaldrich.chip8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Input recordings that replay exactly.
+ *
+ * A movie is everything a run depends on besides the ROM: the seed for CXNN, the speed, the
+ * quirk profile and every change of the keypad, stamped with the cycle it happened at. The
+ * ROM itself is only identified by its CRC32.
+ *
+ * To make the cycles exact, the keypad the CPU sees is only changed between two slices of
+ * the {@link Scheduler}. The {@link Recorder} copies the keys the player is holding onto
+ * the machine's keypad there and writes down every change, the {@link Player} sets them
+ * back at the same cycles and makes the scheduler stop at those cycles.
+ *
+ * File layout, big endian: magic (4), version (4), ROM CRC32 (4), seed (8), speed (4),
+ * profile name (modified UTF-8 with a 2 byte length), then one record per change until
+ * the end of the file: cycles since the previous record (variable length, 7 bits per
+ * byte), keys (2). Version 1 movies have no profile name and play with the default
+ * quirks.
+ */
+public class Movie {
+	
+	public static final int MAGIC = 0x43384D56; // "C8MV"
+	public static final int VERSION = 2;
+	
+	public static int crc(byte[] rom) {
+		CRC32 crc = new CRC32();
+		crc.update(rom, 0, rom.length);
+		return (int) crc.getValue();
+	}
+	
+	/**
+	 * Records a run. Key events go to the input keypad instead of the machine's, the
+	 * recorder hands them on to the machine.
+	 */
+	public static class Recorder extends Scheduler.Input {
+		
+		private final DataOutputStream out;
+		
+		private final Keypad input;
+		
+		private long lastCycle;
+		
+		private boolean closed;
+		
+		public Recorder(OutputStream out, Keypad input, int romCrc, long seed, int speed, Quirks quirks)
+				throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(out));
+			this.input = input;
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(VERSION);
+			this.out.writeInt(romCrc);
+			this.out.writeLong(seed);
+			this.out.writeInt(speed);
+			this.out.writeUTF(quirks.name);
+		}
+		
+		public Recorder(Path path, Keypad input, int romCrc, long seed, int speed, Quirks quirks) throws IOException {
+			this(Files.newOutputStream(path), input, romCrc, seed, speed, quirks);
+		}
+		
+		@Override
+		public void poll(Chip8 chip8) {
+			int keys = input.get();
+			if(keys != chip8.keypad.get()) {
+				chip8.keypad.set(keys, chip8.cycles);
+				record(chip8.cycles, keys);
+			}
+		}
+		
+		private synchronized void record(long cycle, int keys) {
+			if(closed) {
+				return;
+			}
+			try {
+				writeVarLong(out, cycle - lastCycle);
+				out.writeShort(keys);
+			} catch(IOException e) {
+				// Stop recording, but keep the game running
+				e.printStackTrace();
+				closed = true;
+			}
+			lastCycle = cycle;
+		}
+		
+		/**
+		 * Ends the movie at the current cycle of the machine, so a replay runs just as
+		 * long.
+		 */
+		public synchronized void close(Chip8 chip8) throws IOException {
+			if(closed) {
+				return;
+			}
+			record(chip8.cycles, chip8.keypad.get());
+			closed = true;
+			out.close();
+		}
+	}
+	
+	/**
+	 * Plays a movie back by setting the machine's keypad at the recorded cycles.
+	 */
+	public static class Player extends Scheduler.Input {
+		
+		public final int romCrc;
+		public final long seed;
+		public final int speed;
+		public final Quirks quirks;
+		
+		private long[] cycles = new long[64];
+		private int[] keys = new int[64];
+		private int count;
+		
+		// Next record to play
+		private int index;
+		
+		public Player(InputStream in) throws IOException {
+			DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+			if(data.readInt() != MAGIC) {
+				throw new IOException("Not a movie file");
+			}
+			int version = data.readInt();
+			if(version != 1 && version != VERSION) {
+				throw new IOException("Unsupported movie version " + version);
+			}
+			romCrc = data.readInt();
+			seed = data.readLong();
+			speed = data.readInt();
+			if(version == 1) {
+				quirks = Quirks.DEFAULT;
+			} else {
+				try {
+					quirks = Quirks.forName(data.readUTF());
+				} catch(IllegalArgumentException e) {
+					throw new IOException(e.getMessage());
+				}
+			}
+			
+			long cycle = 0;
+			while(true) {
+				long delta;
+				try {
+					delta = readVarLong(data);
+				} catch(EOFException e) {
+					break;
+				}
+				cycle += delta;
+				if(count == cycles.length) {
+					cycles = Arrays.copyOf(cycles, count * 2);
+					keys = Arrays.copyOf(keys, count * 2);
+				}
+				cycles[count] = cycle;
+				keys[count] = data.readUnsignedShort();
+				count++;
+			}
+		}
+		
+		public static Player read(Path path) throws IOException {
+			try(InputStream in = Files.newInputStream(path)) {
+				return new Player(in);
+			}
+		}
+		
+		// Cycle of the last record, where the recording stopped
+		public long getLength() {
+			return (count == 0) ? 0 : cycles[count - 1];
+		}
+		
+		public void rewind() {
+			index = 0;
+		}
+		
+		@Override
+		public void poll(Chip8 chip8) {
+			while(index < count && cycles[index] <= chip8.cycles) {
+				chip8.keypad.set(keys[index], cycles[index]);
+				index++;
+			}
+		}
+		
+		@Override
+		public long untilNextEvent(Chip8 chip8) {
+			return (index < count) ? cycles[index] - chip8.cycles : Long.MAX_VALUE;
+		}
+	}
+	
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+	
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+		return value;
+	}
+}
@@ -0,0 +1,122 @@
+package com.markaldrich.chip8;
+
+/**
+ * The ways the CHIP-8 variants disagree about what an instruction does, bundled into
+ * named profiles.
+ *
+ * Every profile decodes opcodes on its own: the quirks are looked at once per opcode when
+ * picking its handler, e.g. {@link Decoder#SHR_VY} instead of {@link Decoder#SHR}, and the
+ * decoded instructions are interned per profile. Executing an instruction never checks a
+ * quirk, a machine only pays for the profile it runs.
+ *
+ * The default profile is the behaviour this emulator always had, the others follow the
+ * interpreters they are named after.
+ */
+public class Quirks {
+	
+	// What FX55 and FX65 do to I
+	public static final int I_UNCHANGED = 0;
+	public static final int I_PLUS_X = 1;
+	public static final int I_PLUS_X_PLUS_1 = 2;
+	
+	// Where DXYN draws a sprite that does not fit on the screen
+	public static final int SPRITES_CLIPPED = 0;
+	// The position wraps around the screen, the part that sticks out is clipped
+	public static final int SPRITES_START_WRAPS = 1;
+	// The part that sticks out comes back in on the other side
+	public static final int SPRITES_WRAP = 2;
+	
+	// How this emulator always did it, a sprite that starts off the screen is not drawn
+	public static final Quirks DEFAULT = new Quirks("default", false, I_UNCHANGED, false, SPRITES_CLIPPED, false,
+			Chip8.MEMORY_SIZE);
+	
+	// The original interpreter on the COSMAC VIP
+	public static final Quirks VIP = new Quirks("vip", true, I_PLUS_X_PLUS_1, false, SPRITES_START_WRAPS, true,
+			Chip8.MEMORY_SIZE);
+	
+	// CHIP-48 on the HP48
+	public static final Quirks CHIP48 = new Quirks("chip48", false, I_PLUS_X, true, SPRITES_START_WRAPS, false,
+			Chip8.MEMORY_SIZE);
+	
+	// SUPER-CHIP 1.1
+	public static final Quirks SCHIP = new Quirks("schip", false, I_UNCHANGED, true, SPRITES_START_WRAPS, false,
+			Chip8.MEMORY_SIZE);
+	
+	public static final Quirks XO_CHIP = new Quirks("xochip", true, I_PLUS_X_PLUS_1, false, SPRITES_WRAP, false,
+			Chip8.XO_CHIP_MEMORY_SIZE);
+	
+	public static final Quirks[] ALL = { DEFAULT, VIP, CHIP48, SCHIP, XO_CHIP };
+	
+	public final String name;
+	
+	// 8XY6 and 8XYE shift VY into VX instead of shifting VX
+	public final boolean shiftVy;
+	
+	// One of the I_ constants
+	public final int loadStoreI;
+	
+	// BNNN jumps to XNN plus VX instead of NNN plus V0
+	public final boolean jumpVx;
+	
+	// One of the SPRITES_ constants
+	public final int sprites;
+	
+	// 8XY1, 8XY2 and 8XY3 set VF to 0
+	public final boolean logicResetsVf;
+	
+	public final int memorySize;
+	
+	// Every opcode only ever has to be decoded once, the instructions are shared
+	private final Instruction[] instructions = new Instruction[0x10000];
+	
+	private Quirks(String name, boolean shiftVy, int loadStoreI, boolean jumpVx, int sprites, boolean logicResetsVf,
+			int memorySize) {
+		this.name = name;
+		this.shiftVy = shiftVy;
+		this.loadStoreI = loadStoreI;
+		this.jumpVx = jumpVx;
+		this.sprites = sprites;
+		this.logicResetsVf = logicResetsVf;
+		this.memorySize = memorySize;
+	}
+	
+	/**
+	 * @throws IllegalArgumentException if there is no profile by that name
+	 */
+	public static Quirks forName(String name) {
+		for(Quirks quirks : ALL) {
+			if(quirks.name.equals(name)) {
+				return quirks;
+			}
+		}
+		StringBuilder names = new StringBuilder();
+		for(Quirks quirks : ALL) {
+			names.append((names.length() == 0) ? "" : ", ").append(quirks.name);
+		}
+		throw new IllegalArgumentException("Unknown quirk profile " + name + ", must be one of " + names);
+	}
+	
+	// Position in ALL
+	public int getIndex() {
+		for(int i = 0; i < ALL.length; i++) {
+			if(ALL[i] == this) {
+				return i;
+			}
+		}
+		throw new IllegalStateException();
+	}
+	
+	public Instruction decode(int opcode) {
+		Instruction instruction = instructions[opcode];
+		if(instruction == null) {
+			instruction = new Instruction(Decoder.handlerFor(opcode, this), opcode);
+			instructions[opcode] = instruction;
+		}
+		return instruction;
+	}
+	
+	@Override
+	public String toString() {
+		return name;
+	}
+}
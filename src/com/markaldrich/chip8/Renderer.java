@@ -0,0 +1,95 @@
+package com.markaldrich.chip8;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Turns a {@link Display} into an image and draws it scaled to the window.
+ *
+ * The image is kept between frames and its pixels are written straight into the backing
+ * int array through a palette, and only rows that changed since the last frame are
+ * touched. Once the image exists, drawing a frame does not allocate anything.
+ *
+ * The palette has a color for every combination of the two planes: off, the first, the
+ * second and both.
+ */
+public class Renderer {
+	
+	public static final int[] DEFAULT_PALETTE = { 0x000000, 0xFFFFFF, 0x555555, 0xAAAAAA };
+	
+	private final int[] palette;
+	
+	private BufferedImage image;
+	private int[] pixels;
+	
+	// Copy of the rows of both planes as they are in the image right now
+	private final long[] drawn = new long[Display.HIRES_HEIGHT * Display.HIRES_WIDTH / 64];
+	private final long[] drawnSecond = new long[drawn.length];
+	
+	public Renderer(int[] palette) {
+		if(palette.length != 1 << Display.PLANES) {
+			throw new IllegalArgumentException("Palette needs " + (1 << Display.PLANES) + " colors, got " + palette.length);
+		}
+		this.palette = palette.clone();
+	}
+	
+	public Renderer() {
+		this(DEFAULT_PALETTE);
+	}
+	
+	public BufferedImage getImage() {
+		return image;
+	}
+	
+	/**
+	 * Brings the image up to date with the display.
+	 */
+	public void update(Display display) {
+		int width = display.width;
+		int height = display.height;
+		int words = display.words;
+		long[] rows = display.rows;
+		long[] second = display.planes[1];
+		
+		boolean redrawAll = false;
+		if(image == null || image.getWidth() != width || image.getHeight() != height) {
+			image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+			redrawAll = true;
+		}
+		
+		int[] palette = this.palette;
+		int[] pixels = this.pixels;
+		for(int y = 0; y < height; y++) {
+			for(int word = 0; word < words; word++) {
+				int index = y * words + word;
+				long row = rows[index];
+				long rowSecond = second[index];
+				if(!redrawAll && row == drawn[index] && rowSecond == drawnSecond[index]) {
+					continue;
+				}
+				drawn[index] = row;
+				drawnSecond[index] = rowSecond;
+				int offset = y * width + word * 64;
+				if(rowSecond == 0) {
+					for(int x = 0; x < 64; x++) {
+						pixels[offset + x] = palette[(int) (row >>> (63 - x)) & 1];
+					}
+				} else {
+					for(int x = 0; x < 64; x++) {
+						pixels[offset + x] = palette[((int) (row >>> (63 - x)) & 1) | ((int) (rowSecond >>> (63 - x)) & 1) << 1];
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Updates the image and draws it scaled to fill the given area.
+	 */
+	public void render(Graphics2D g, Display display, int width, int height) {
+		update(display);
+		g.drawImage(image, 0, 0, width, height, null);
+	}
+}
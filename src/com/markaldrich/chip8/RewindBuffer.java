@@ -0,0 +1,231 @@
+package com.markaldrich.chip8;
+
+/**
+ * Keeps the last few seconds of machine states so play can be stepped backwards one frame
+ * at a time.
+ *
+ * States are grouped into segments. The first state of a segment is stored whole as a
+ * keyframe, every later one only as the difference to that keyframe: the state is XORed
+ * with the keyframe and the runs of zeroes are left out. Every delta is against the
+ * keyframe and not the frame before it, so going back to any frame is a single copy and
+ * a single pass over one delta.
+ *
+ * All of the memory is allocated up front and the segments are used as a ring, when it
+ * is full the oldest segment is dropped. Recording and rewinding do not allocate, unless
+ * the machine's memory size changes, which throws everything recorded away.
+ */
+public class RewindBuffer {
+	
+	public static final int DEFAULT_SECONDS = 60;
+	
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+	
+	// Room for the deltas of a segment, per frame. Most frames only touch a few bytes of
+	// memory and a few rows of the display, a segment with bigger changes just ends early.
+	public static final int DELTA_BYTES_PER_FRAME = 512;
+	
+	private final SaveState state = new SaveState();
+	
+	private final int interval;
+	
+	// Size of a state, and so of every keyframe
+	private int size = SaveState.size(Chip8.MEMORY_SIZE);
+	
+	private final byte[][] keyframes;
+	private final byte[][] deltas;
+	// End of every delta in the segment, entry 0 is the keyframe and has no delta
+	private final int[][] deltaEnds;
+	// Number of frames in every segment
+	private final int[] counts;
+	
+	// Oldest segment and the number of segments in use
+	private int first;
+	private int used;
+	
+	/**
+	 * @param frames number of frames to keep
+	 * @param interval number of frames per keyframe
+	 */
+	public RewindBuffer(int frames, int interval) {
+		if(frames <= 0 || interval <= 0) {
+			throw new IllegalArgumentException("Frames and interval must be positive, got " + frames + " and " + interval);
+		}
+		this.interval = interval;
+		// One more segment than needed, it is the one being filled when the oldest is full
+		int segments = (frames + interval - 1) / interval + 1;
+		keyframes = new byte[segments][size];
+		deltas = new byte[segments][interval * DELTA_BYTES_PER_FRAME];
+		deltaEnds = new int[segments][interval];
+		counts = new int[segments];
+	}
+	
+	public RewindBuffer() {
+		this(DEFAULT_SECONDS * Scheduler.TIMER_HZ, DEFAULT_KEYFRAME_INTERVAL);
+	}
+	
+	// Number of frames that can be rewound
+	public int size() {
+		int size = 0;
+		for(int i = 0; i < used; i++) {
+			size += counts[(first + i) % counts.length];
+		}
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return used == 0;
+	}
+	
+	public void clear() {
+		first = 0;
+		used = 0;
+	}
+	
+	/**
+	 * Adds the current state of the machine as the newest frame, meant to be called once
+	 * per frame.
+	 */
+	public void record(Chip8 chip8) {
+		state.save(chip8);
+		byte[] current = state.getBuffer().array();
+		if(state.getSize() != size) {
+			size = state.getSize();
+			for(int i = 0; i < keyframes.length; i++) {
+				keyframes[i] = new byte[size];
+			}
+			clear();
+		}
+		
+		if(used > 0) {
+			int segment = (first + used - 1) % counts.length;
+			int count = counts[segment];
+			if(count < interval) {
+				int start = deltaEnds[segment][count - 1];
+				int end = encode(current, keyframes[segment], deltas[segment], start);
+				if(end >= 0) {
+					deltaEnds[segment][count] = end;
+					counts[segment] = count + 1;
+					return;
+				}
+			}
+		}
+		
+		// Start a new segment, dropping the oldest one if they are all in use
+		if(used == counts.length) {
+			first = (first + 1) % counts.length;
+			used--;
+		}
+		int segment = (first + used) % counts.length;
+		used++;
+		System.arraycopy(current, 0, keyframes[segment], 0, size);
+		deltaEnds[segment][0] = 0;
+		counts[segment] = 1;
+	}
+	
+	/**
+	 * Puts the machine back to the newest recorded frame and forgets that frame, so the
+	 * next call goes back one frame further.
+	 *
+	 * @return false if there was nothing left to rewind to
+	 */
+	public boolean rewind(Chip8 chip8) {
+		if(used == 0) {
+			return false;
+		}
+		int segment = (first + used - 1) % counts.length;
+		int count = counts[segment];
+		byte[] restored = state.getBuffer().array();
+		System.arraycopy(keyframes[segment], 0, restored, 0, size);
+		if(count > 1) {
+			decode(deltas[segment], deltaEnds[segment][count - 2], deltaEnds[segment][count - 1], restored);
+		}
+		state.load(chip8);
+		
+		if(count > 1) {
+			counts[segment] = count - 1;
+		} else {
+			used--;
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes the XOR of current and keyframe to out at offset, as pairs of the number of
+	 * zero bytes to skip and the number of bytes that follow.
+	 *
+	 * @return the end of the delta, or -1 if it did not fit
+	 */
+	private static int encode(byte[] current, byte[] keyframe, byte[] out, int offset) {
+		int limit = out.length;
+		int size = keyframe.length;
+		int i = 0;
+		while(i < size) {
+			int skip = i;
+			while(i < size && current[i] == keyframe[i]) {
+				i++;
+			}
+			if(i == size) {
+				break;
+			}
+			skip = i - skip;
+			int literal = i;
+			while(i < size && current[i] != keyframe[i]) {
+				i++;
+			}
+			int length = i - literal;
+			
+			if(offset + 6 + length > limit) {
+				return -1;
+			}
+			offset = writeLength(out, offset, skip);
+			offset = writeLength(out, offset, length);
+			for(int j = literal; j < i; j++) {
+				out[offset++] = (byte) (current[j] ^ keyframe[j]);
+			}
+		}
+		return offset;
+	}
+	
+	// XORs the delta between start and end onto the keyframe in state
+	private static void decode(byte[] in, int start, int end, byte[] state) {
+		int i = 0;
+		int offset = start;
+		while(offset < end) {
+			int skip = readLength(in, offset);
+			offset += lengthSize(skip);
+			int length = readLength(in, offset);
+			offset += lengthSize(length);
+			i += skip;
+			for(int j = 0; j < length; j++) {
+				state[i++] ^= in[offset++];
+			}
+		}
+	}
+	
+	// Lengths take 7 bits per byte, lowest first, so up to 3 bytes for 64 KB of memory
+	private static int writeLength(byte[] out, int offset, int length) {
+		while(length >= 0x80) {
+			out[offset++] = (byte) (0x80 | length);
+			length >>>= 7;
+		}
+		out[offset++] = (byte) length;
+		return offset;
+	}
+	
+	private static int readLength(byte[] in, int offset) {
+		int length = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in[offset++] & 0xFF;
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+		return length;
+	}
+	
+	// Bytes writeLength() takes for a length
+	private static int lengthSize(int length) {
+		return (length < 0x80) ? 1 : (length < 0x4000) ? 2 : 3;
+	}
+}
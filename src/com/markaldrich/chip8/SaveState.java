@@ -0,0 +1,243 @@
+package com.markaldrich.chip8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Snapshot of the full state of a {@link Chip8}, in a binary format whose size only
+ * depends on the size of memory.
+ *
+ * A SaveState owns one buffer that is reused for every save and load, so taking a snapshot
+ * or restoring one does not allocate anything as long as the memory size stays the same.
+ * Memory is stored one byte per address and the display as its packed rows, which keeps a
+ * snapshot at a bit over 6 KB, or 70 KB for XO-CHIP. The random number generator is
+ * included, so a restored machine draws the same numbers again. The keypad is not part of
+ * the state, it belongs to whoever is playing.
+ *
+ * Layout, big endian:
+ * magic (4), version (4), memory size (4), pc (2), I (2), opcode (2), sp (1),
+ * delay timer (1), sound timer (1), flags (1), planes (1), pitch (1), profile (1), cycles (8),
+ * random (8), V0-VF (16), flag registers (16), audio pattern (16), stack (16 x 2),
+ * memory (memory size), display (2 planes x 128 x 8)
+ */
+public class SaveState {
+	
+	public static final int MAGIC = 0x43385353; // "C8SS"
+	public static final int VERSION = 5;
+	
+	public static final int STACK_SIZE = 16;
+	public static final int DISPLAY_WORDS = Display.HIRES_HEIGHT * Display.HIRES_WIDTH / 64;
+	
+	// Everything but memory
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 2 + 2 + 2 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 8 + 8 + 16 + 16 + 16
+			+ STACK_SIZE * 2 + Display.PLANES * DISPLAY_WORDS * 8;
+	
+	// The profile has to be known before anything is put into the machine
+	private static final int PROFILE_OFFSET = 4 + 4 + 4 + 2 + 2 + 2 + 1 + 1 + 1 + 1 + 1 + 1;
+	
+	// Bits of the flags byte
+	private static final int FLAG_WAITING_FOR_KEY = 0x01;
+	private static final int FLAG_DRAW = 0x02;
+	private static final int FLAG_HIRES = 0x04;
+	private static final int FLAG_HALTED = 0x08;
+	
+	private ByteBuffer buffer = ByteBuffer.allocate(size(Chip8.MEMORY_SIZE));
+	
+	// Size of a snapshot of a machine with the given memory size
+	public static int size(int memorySize) {
+		return HEADER_SIZE + memorySize;
+	}
+	
+	/**
+	 * The snapshot itself. Everything between 0 and {@link #getSize()} is valid after a save
+	 * or a read.
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+	
+	public int getSize() {
+		return buffer.capacity();
+	}
+	
+	public void save(Chip8 chip8) {
+		int memorySize = chip8.memory.size;
+		if(buffer.capacity() != size(memorySize)) {
+			buffer = ByteBuffer.allocate(size(memorySize));
+		}
+		ByteBuffer b = buffer;
+		b.clear();
+		b.putInt(MAGIC);
+		b.putInt(VERSION);
+		b.putInt(memorySize);
+		b.putShort((short) chip8.pc);
+		b.putShort((short) chip8.I);
+		b.putShort((short) chip8.opcode);
+		b.put((byte) chip8.sp);
+		b.put((byte) chip8.delayTimer);
+		b.put((byte) chip8.soundTimer);
+		int flags = 0;
+		if(chip8.waitingForKey) {
+			flags |= FLAG_WAITING_FOR_KEY;
+		}
+		if(chip8.drawFlag) {
+			flags |= FLAG_DRAW;
+		}
+		if(chip8.gfx.isHires()) {
+			flags |= FLAG_HIRES;
+		}
+		if(chip8.halted) {
+			flags |= FLAG_HALTED;
+		}
+		b.put((byte) flags);
+		b.put((byte) chip8.planes);
+		b.put((byte) chip8.pitch);
+		b.put((byte) chip8.quirks.getIndex());
+		b.putLong(chip8.cycles);
+		b.putLong(chip8.random);
+		int[] V = chip8.V;
+		for(int i = 0; i < 16; i++) {
+			b.put((byte) V[i]);
+		}
+		for(int i = 0; i < 16; i++) {
+			b.put((byte) chip8.flags[i]);
+		}
+		for(int i = 0; i < 16; i++) {
+			b.put((byte) chip8.audioPattern[i]);
+		}
+		int[] stack = chip8.stack;
+		for(int i = 0; i < STACK_SIZE; i++) {
+			b.putShort((short) stack[i]);
+		}
+		chip8.memory.save(b);
+		for(long[] rows : chip8.gfx.planes) {
+			for(int i = 0; i < DISPLAY_WORDS; i++) {
+				b.putLong(rows[i]);
+			}
+		}
+		b.flip();
+	}
+	
+	/**
+	 * Puts the machine back into the saved state. A machine with different quirks or a
+	 * different memory size is reset to those of the snapshot first.
+	 *
+	 * @throws IllegalStateException if the buffer does not hold a snapshot of this version
+	 */
+	public void load(Chip8 chip8) {
+		ByteBuffer b = buffer;
+		b.rewind();
+		if(b.getInt() != MAGIC) {
+			throw new IllegalStateException("Not a save state");
+		}
+		int version = b.getInt();
+		if(version != VERSION) {
+			throw new IllegalStateException("Unsupported save state version " + version);
+		}
+		int memorySize = b.getInt();
+		int profile = b.get(PROFILE_OFFSET) & 0xFF;
+		if(profile >= Quirks.ALL.length) {
+			throw new IllegalStateException("Unknown quirk profile " + profile);
+		}
+		Quirks quirks = Quirks.ALL[profile];
+		if(quirks != chip8.quirks || memorySize != chip8.memory.size) {
+			chip8.setQuirks(quirks);
+			chip8.setMemorySize(memorySize);
+			chip8.reset();
+		}
+		chip8.pc = b.getShort() & 0xFFFF;
+		chip8.I = b.getShort() & 0xFFFF;
+		chip8.opcode = b.getShort() & 0xFFFF;
+		chip8.sp = b.get() & 0xFF;
+		chip8.delayTimer = b.get() & 0xFF;
+		chip8.soundTimer = b.get() & 0xFF;
+		int flags = b.get();
+		chip8.waitingForKey = (flags & FLAG_WAITING_FOR_KEY) != 0;
+		chip8.drawFlag = (flags & FLAG_DRAW) != 0;
+		chip8.halted = (flags & FLAG_HALTED) != 0;
+		chip8.planes = b.get() & Display.ALL_PLANES;
+		chip8.pitch = b.get() & 0xFF;
+		b.get();
+		chip8.cycles = b.getLong();
+		chip8.random = b.getLong();
+		int[] V = chip8.V;
+		for(int i = 0; i < 16; i++) {
+			V[i] = b.get() & 0xFF;
+		}
+		for(int i = 0; i < 16; i++) {
+			chip8.flags[i] = b.get() & 0xFF;
+		}
+		for(int i = 0; i < 16; i++) {
+			chip8.audioPattern[i] = b.get() & 0xFF;
+		}
+		int[] stack = chip8.stack;
+		for(int i = 0; i < STACK_SIZE; i++) {
+			stack[i] = b.getShort() & 0xFFFF;
+		}
+		// Straight into memory, the decoded and compiled code is thrown away below. Pages that
+		// did not change stay shared.
+		chip8.memory.load(b);
+		Display gfx = chip8.gfx;
+		gfx.setResolution((flags & FLAG_HIRES) != 0);
+		for(long[] rows : gfx.planes) {
+			for(int i = 0; i < DISPLAY_WORDS; i++) {
+				rows[i] = b.getLong();
+			}
+		}
+		chip8.invalidateCode();
+		b.rewind();
+	}
+	
+	public void write(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			buffer.rewind();
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.rewind();
+		}
+	}
+	
+	/**
+	 * Reads a snapshot written by {@link #write(Path)}, it still has to be loaded into a
+	 * machine afterwards.
+	 */
+	public void read(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			// The memory size after the magic and the version says how big the rest is
+			ByteBuffer header = ByteBuffer.allocate(12);
+			while(header.hasRemaining()) {
+				if(channel.read(header) < 0) {
+					throw new IOException("Not a save state");
+				}
+			}
+			int version = header.getInt(4);
+			if(header.getInt(0) != MAGIC) {
+				throw new IOException("Not a save state");
+			} else if(version != VERSION) {
+				throw new IOException("Unsupported save state version " + version);
+			}
+			int memorySize = header.getInt(8);
+			if((memorySize != Chip8.MEMORY_SIZE && memorySize != Chip8.XO_CHIP_MEMORY_SIZE)
+					|| channel.size() != size(memorySize)) {
+				throw new IOException("Not a save state");
+			}
+			if(buffer.capacity() != size(memorySize)) {
+				buffer = ByteBuffer.allocate(size(memorySize));
+			}
+			buffer.clear();
+			header.flip();
+			buffer.put(header);
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer) < 0) {
+					throw new IOException("Not a save state");
+				}
+			}
+			buffer.flip();
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package com.markaldrich.chip8;
+
+/**
+ * Runs a {@link Chip8} at a fixed instruction rate and ticks its timers at 60hz.
+ *
+ * The timers are driven by emulated time: they tick once every speed / 60 instructions,
+ * so the CPU and the timers can never drift apart. {@link #update()} converts the wall
+ * clock time since the last call into instructions, so in real time the timers end up
+ * ticking at 60hz as well.
+ *
+ * While the CPU is waiting for a key in FX0A or has exited with 00FD no instructions are
+ * run, but the time still counts towards the cycle counter and the timers.
+ *
+ * An {@link Input} gets to change the keypad before every slice of instructions, at a
+ * cycle that only depends on the emulated time, so input can be replayed exactly. Key
+ * events from another thread have to go through one as well, e.g. a {@link KeypadInput},
+ * instead of straight into the machine's keypad.
+ *
+ * Since neither the timers nor the keypad change within a slice, a machine that is polling
+ * them in an idle loop does nothing new until the slice ends. The rest of the slice is
+ * then skipped with {@link Chip8#skipIdleLoop(long)}, which leaves the machine in exactly
+ * the state running it would have.
+ */
+public class Scheduler {
+	
+	public static abstract class Input {
+		
+		// Called before every slice of instructions
+		public abstract void poll(Chip8 chip8);
+		
+		// Instructions until the input wants to be polled again
+		public long untilNextEvent(Chip8 chip8) {
+			return Long.MAX_VALUE;
+		}
+	}
+	
+	/**
+	 * Copies the keys held on a keypad of its own onto the machine's at the start of every
+	 * slice, so key events from the UI thread never land in the middle of one.
+	 */
+	public static class KeypadInput extends Input {
+		
+		private final Keypad input;
+		
+		public KeypadInput(Keypad input) {
+			this.input = input;
+		}
+		
+		@Override
+		public void poll(Chip8 chip8) {
+			int keys = input.get();
+			if(keys != chip8.keypad.get()) {
+				chip8.keypad.set(keys, chip8.cycles);
+			}
+		}
+	}
+	
+	public static final int TIMER_HZ = 60;
+	
+	public static final int DEFAULT_SPEED = 700;
+	
+	// Instructions into a slice that are checked for the start of an idle loop. Loops are
+	// at most 3 instructions long, so this finds one no matter where the slice starts in it.
+	private static final int IDLE_PROBES = 3;
+	
+	// Longest stall that will be caught up on, anything past this is dropped
+	public static final long DEFAULT_MAX_CATCH_UP = 100000000L;
+	
+	private final Chip8 chip8;
+	
+	// Instructions per second
+	private int speed;
+	
+	private long maxCatchUp = DEFAULT_MAX_CATCH_UP;
+	
+	// Instructions since the last timer tick, multiplied by TIMER_HZ
+	private long timerPhase;
+	
+	// Left over instructions from the last update, multiplied by 1e9
+	private long owed;
+	
+	private long lastTime;
+	
+	// Called every time the timers tick, i.e. once per 60hz frame
+	private Runnable frameListener;
+	
+	private Input input;
+	
+	private boolean skipIdle = true;
+	
+	public Scheduler(Chip8 chip8, int speed) {
+		this.chip8 = chip8;
+		setSpeed(speed);
+		lastTime = System.nanoTime();
+	}
+	
+	public Scheduler(Chip8 chip8) {
+		this(chip8, DEFAULT_SPEED);
+	}
+	
+	public int getSpeed() {
+		return speed;
+	}
+	
+	public void setSpeed(int speed) {
+		if(speed < TIMER_HZ) {
+			throw new IllegalArgumentException("Speed must be at least " + TIMER_HZ + " instructions/s, got " + speed);
+		}
+		this.speed = speed;
+		timerPhase = 0;
+		owed = 0;
+	}
+	
+	public void setFrameListener(Runnable frameListener) {
+		this.frameListener = frameListener;
+	}
+	
+	public void setInput(Input input) {
+		this.input = input;
+	}
+	
+	public boolean isSkipIdle() {
+		return skipIdle;
+	}
+	
+	// Off runs idle loops instruction by instruction, e.g. to compare against
+	public void setSkipIdle(boolean skipIdle) {
+		this.skipIdle = skipIdle;
+	}
+	
+	public long getMaxCatchUp() {
+		return maxCatchUp;
+	}
+	
+	public void setMaxCatchUp(long nanos) {
+		maxCatchUp = nanos;
+	}
+	
+	/**
+	 * Runs as many instructions as the wall clock says are due since the last call.
+	 */
+	public void update() {
+		long now = System.nanoTime();
+		long elapsed = Math.min(now - lastTime, maxCatchUp);
+		lastTime = now;
+		
+		owed += elapsed * speed;
+		long due = owed / 1000000000L;
+		owed -= due * 1000000000L;
+		run(due);
+	}
+	
+	/**
+	 * Forgets about any time that has passed, e.g. after the emulator was paused.
+	 */
+	public void resync() {
+		lastTime = System.nanoTime();
+		owed = 0;
+	}
+	
+	/**
+	 * Runs the given number of instructions as fast as possible, ticking the timers along
+	 * the way.
+	 */
+	public void run(long instructions) {
+		while(instructions > 0) {
+			long n = Math.min(instructions, untilTimerTick());
+			if(input != null) {
+				input.poll(chip8);
+				n = Math.min(n, input.untilNextEvent(chip8));
+			}
+			execute(n);
+			instructions -= n;
+			advance(n);
+		}
+	}
+	
+	private void execute(long n) {
+		Chip8 chip8 = this.chip8;
+		// Compiled blocks do not record a trace, so tracing always interprets
+		BlockCompiler jit = (chip8.trace == null) ? chip8.jit : null;
+		if(jit != null) {
+			jit.attach(chip8);
+		}
+		Metrics metrics = chip8.metrics;
+		Block previous = null;
+		// Skipped loops would be missing from the trace
+		int probes = (skipIdle && chip8.trace == null) ? IDLE_PROBES : 0;
+		long i = 0;
+		while(i < n) {
+			if(chip8.halted || (chip8.waitingForKey && chip8.keypad.get() == 0)) {
+				// Blocked on FX0A or exited, the time passes without running anything
+				chip8.cycles += n - i;
+				return;
+			}
+			if(probes > 0) {
+				probes--;
+				long skipped = chip8.skipIdleLoop(n - i);
+				if(skipped > 0) {
+					if(metrics != null) {
+						metrics.idleInstructions += skipped;
+					}
+					i += skipped;
+					probes = 0;
+					continue;
+				}
+			}
+			if(jit != null) {
+				// Follow the chain from the last block if it went to the same place as before
+				int pc = chip8.pc;
+				Block block = (previous != null) ? previous.next : null;
+				if(block == null || block.start != pc || !block.valid) {
+					block = jit.lookup(chip8, pc);
+					if(previous != null) {
+						previous.next = block;
+					}
+				}
+				// Only run whole blocks that fit, so the timers tick at the same
+				// instruction as they would when interpreting
+				if(block != null && block.length <= n - i) {
+					long cycles = chip8.cycles;
+					block.execute(chip8);
+					if(metrics != null) {
+						metrics.count(block);
+					}
+					// Fewer than length if a skip inside the block was taken
+					i += chip8.cycles - cycles;
+					previous = block;
+					continue;
+				}
+				previous = null;
+			}
+			chip8.step();
+			i++;
+		}
+	}
+	
+	/**
+	 * Runs the given number of 60hz frames as fast as possible.
+	 */
+	public void runFrames(long frames) {
+		for(long i = 0; i < frames; i++) {
+			run(untilTimerTick());
+		}
+	}
+	
+	// Number of instructions until the timers tick next
+	private long untilTimerTick() {
+		return (speed - timerPhase + TIMER_HZ - 1) / TIMER_HZ;
+	}
+	
+	private void advance(long instructions) {
+		timerPhase += instructions * TIMER_HZ;
+		while(timerPhase >= speed) {
+			timerPhase -= speed;
+			chip8.tickTimers();
+			if(frameListener != null) {
+				frameListener.run();
+			}
+		}
+	}
+}
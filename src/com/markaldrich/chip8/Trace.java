@@ -0,0 +1,105 @@
+package com.markaldrich.chip8;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Ring buffer holding the machine state before each of the last executed instructions.
+ *
+ * Tracing is off unless a Trace is attached to {@link Chip8#trace}, the only cost then is a
+ * null check per instruction. Recording never allocates, everything goes into one byte
+ * array that is sized up front. Dumps can be read back with {@link TracePrinter}.
+ */
+public class Trace {
+	
+	public static final int MAGIC = 0x43385452; // "C8TR"
+	public static final int VERSION = 2;
+	
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+	
+	// cycles (8), pc (2), opcode (2), I (2), sp (1), V0-VF (16)
+	public static final int RECORD_SIZE = 31;
+	
+	private final byte[] buffer;
+	private final int capacity;
+	
+	// Index of the next record to be written
+	private int head;
+	
+	// Total number of records written since the last clear
+	private long recorded;
+	
+	public Trace(int capacity) {
+		if(capacity <= 0) {
+			throw new IllegalArgumentException("Trace capacity must be positive, got " + capacity);
+		}
+		this.capacity = capacity;
+		buffer = new byte[capacity * RECORD_SIZE];
+	}
+	
+	public Trace() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	public void record(long cycles, int pc, int opcode, int I, int sp, int[] V) {
+		byte[] b = buffer;
+		int offset = head * RECORD_SIZE;
+		for(int i = 0; i < 8; i++) {
+			b[offset++] = (byte) (cycles >>> (56 - i * 8));
+		}
+		b[offset] = (byte) (pc >> 8);
+		b[offset + 1] = (byte) pc;
+		b[offset + 2] = (byte) (opcode >> 8);
+		b[offset + 3] = (byte) opcode;
+		b[offset + 4] = (byte) (I >> 8);
+		b[offset + 5] = (byte) I;
+		b[offset + 6] = (byte) sp;
+		for(int i = 0; i < 16; i++) {
+			b[offset + 7 + i] = (byte) V[i];
+		}
+		if(++head == capacity) {
+			head = 0;
+		}
+		recorded++;
+	}
+	
+	public int size() {
+		return (int) Math.min(recorded, capacity);
+	}
+	
+	public long getRecorded() {
+		return recorded;
+	}
+	
+	public void clear() {
+		head = 0;
+		recorded = 0;
+	}
+	
+	/**
+	 * Writes the buffered records, oldest first, behind a small header.
+	 */
+	public void dump(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		int size = size();
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeLong(recorded - size);
+		data.writeInt(size);
+		int first = (recorded > capacity) ? head : 0;
+		int firstChunk = Math.min(size, capacity - first);
+		data.write(buffer, first * RECORD_SIZE, firstChunk * RECORD_SIZE);
+		data.write(buffer, 0, (size - firstChunk) * RECORD_SIZE);
+		data.flush();
+	}
+	
+	public void dump(Path path) throws IOException {
+		try(OutputStream out = Files.newOutputStream(path)) {
+			dump(out);
+		}
+	}
+}
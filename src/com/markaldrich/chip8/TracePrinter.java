@@ -0,0 +1,91 @@
+package com.markaldrich.chip8;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Prints a trace written by {@link Trace#dump} as one line per instruction.
+ *
+ * Usage: TracePrinter &lt;trace file&gt;
+ */
+public class TracePrinter {
+	
+	public static void main(String[] args) {
+		if(args.length != 1) {
+			System.err.println("Usage: TracePrinter <trace file>");
+			System.exit(2);
+		}
+		try(InputStream in = Files.newInputStream(Paths.get(args[0]))) {
+			print(in, System.out);
+		} catch(IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+	
+	public static void print(InputStream in, PrintStream out) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		if(data.readInt() != Trace.MAGIC) {
+			throw new IOException("Not a trace file");
+		}
+		int version = data.readInt();
+		if(version == 1) {
+			// Its records have no cycle count, so they can not be put at the right cycle
+			throw new IOException("Trace version 1 has no cycle counts, record the trace again");
+		}
+		if(version != Trace.VERSION) {
+			throw new IOException("Unsupported trace version " + version);
+		}
+		// Records that were dropped before the first one in the file
+		data.readLong();
+		int size = data.readInt();
+		
+		byte[] record = new byte[Trace.RECORD_SIZE];
+		StringBuilder line = new StringBuilder();
+		out.println("cycle        pc   op   I    sp V0 V1 V2 V3 V4 V5 V6 V7 V8 V9 VA VB VC VD VE VF");
+		for(int i = 0; i < size; i++) {
+			try {
+				data.readFully(record);
+			} catch(EOFException e) {
+				out.println("(trace truncated after " + i + " of " + size + " records)");
+				return;
+			}
+			long cycles = 0;
+			for(int b = 0; b < 8; b++) {
+				cycles = cycles << 8 | (record[b] & 0xFF);
+			}
+			line.setLength(0);
+			pad(line, Long.toString(cycles), 12, ' ');
+			line.append(' ');
+			hex(line, (record[8] & 0xFF) << 8 | (record[9] & 0xFF), 3);
+			line.append("  ");
+			hex(line, (record[10] & 0xFF) << 8 | (record[11] & 0xFF), 4);
+			line.append(' ');
+			hex(line, (record[12] & 0xFF) << 8 | (record[13] & 0xFF), 3);
+			line.append("  ");
+			hex(line, record[14] & 0xFF, 2);
+			for(int v = 0; v < 16; v++) {
+				line.append(' ');
+				hex(line, record[15 + v] & 0xFF, 2);
+			}
+			out.println(line);
+		}
+	}
+	
+	private static void hex(StringBuilder line, int value, int digits) {
+		pad(line, Integer.toHexString(value).toUpperCase(), digits, '0');
+	}
+	
+	private static void pad(StringBuilder line, String text, int width, char padding) {
+		for(int i = text.length(); i < width; i++) {
+			line.append(padding);
+		}
+		line.append(text);
+	}
+}